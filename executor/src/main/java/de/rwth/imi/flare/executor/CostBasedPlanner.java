@@ -0,0 +1,68 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.requestor.SearchScope;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Orders the groups of a conjunction by their estimated number of patients, so that the most selective group can be
+ * evaluated before the others. If it matches no patient, the others need not be fetched at all.<br>
+ * The size of a group is estimated by the sum of the sizes of its criteria, which are taken from the cache or counted
+ * by the FHIR servers with _summary=count, see {@link FhirIdRequestor#estimatePatientCount}. Groups that are too large
+ * to be estimated cheaply, or whose criteria can not be counted, are assumed to match everyone.
+ */
+public class CostBasedPlanner {
+    public static final int UNKNOWN_SIZE = Integer.MAX_VALUE;
+
+    private final FhirIdRequestor fhirIdRequestor;
+    private final int maxEstimatedCriteriaPerGroup;
+
+    public CostBasedPlanner(FhirIdRequestor fhirIdRequestor, int maxEstimatedCriteriaPerGroup) {
+        this.fhirIdRequestor = fhirIdRequestor;
+        this.maxEstimatedCriteriaPerGroup = maxEstimatedCriteriaPerGroup;
+    }
+
+    /**
+     * @param groups groups of a conjunction
+     * @param scope scope of the query the groups belong to
+     * @return the groups with their estimated sizes, most selective first
+     */
+    public CompletableFuture<List<PlannedGroup>> plan(List<CriteriaGroup> groups, SearchScope scope) {
+        List<CompletableFuture<PlannedGroup>> plannedGroups = groups.stream()
+                .map(group -> estimate(group, scope)).toList();
+        return CompletableFuture.allOf(plannedGroups.toArray(new CompletableFuture[0]))
+                .thenApply(unused -> plannedGroups.stream().map(CompletableFuture::join)
+                        .sorted(Comparator.comparingInt(PlannedGroup::getEstimatedSize))
+                        .toList());
+    }
+
+    private CompletableFuture<PlannedGroup> estimate(CriteriaGroup group, SearchScope scope) {
+        List<Criterion> criteria = group.getCriteria();
+        if (criteria.size() > maxEstimatedCriteriaPerGroup) {
+            return CompletableFuture.completedFuture(new PlannedGroup(group, UNKNOWN_SIZE));
+        }
+        List<CompletableFuture<Integer>> sizes = criteria.stream()
+                .map(criterion -> fhirIdRequestor.estimatePatientCount(criterion, scope)
+                        .exceptionally(e -> UNKNOWN_SIZE))
+                .toList();
+        return CompletableFuture.allOf(sizes.toArray(new CompletableFuture[0]))
+                .thenApply(unused -> {
+                    long size = sizes.stream().mapToLong(CompletableFuture::join).sum();
+                    return new PlannedGroup(group, (int) Math.min(UNKNOWN_SIZE, size));
+                });
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class PlannedGroup {
+        private final CriteriaGroup group;
+        // Upper bound of the number of patients, UNKNOWN_SIZE if not estimated
+        private final int estimatedSize;
+    }
+}
@@ -1,27 +1,110 @@
 package de.rwth.imi.flare.executor;
 
 import de.rwth.imi.flare.api.model.Criterion;
-import de.rwth.imi.flare.requestor.CacheConfig;
 import de.rwth.imi.flare.requestor.FhirRequestor;
-import de.rwth.imi.flare.requestor.FhirRequestorConfig;
+import de.rwth.imi.flare.requestor.IdSetAccumulator;
+import de.rwth.imi.flare.requestor.SearchScope;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
+import java.util.function.Function;
 
+/**
+ * Requests the ids of the patients fitting criteria from one or several FHIR servers. With several servers, every
+ * criterion is requested from all of them in parallel and the patients found are united. Each server is queried by its
+ * own requestor, caching its results and limiting its concurrent requests independently of the others.
+ */
 public class FhirIdRequestor {
-    FhirRequestor requestor;
+    private final List<FhirRequestor> requestors;
+    // Patients of different servers are distinct, so their counts can be added up
+    private final boolean disjointSources;
 
     public FhirIdRequestor(FhirRequestor requestor) {
-        this.requestor = requestor;
+        this(List.of(requestor));
     }
 
     /**
-     * Get all ids fulfilling a given criterion
+     * @param requestors one requestor per FHIR server, all encoding patient ids with the same dictionary
      */
-    public CompletableFuture<Set<String>> getPatientIdsFittingCriterion(Criterion criterion) {
-        return requestor.execute(criterion);
+    public FhirIdRequestor(List<FhirRequestor> requestors) {
+        if (requestors.isEmpty()) {
+            throw new IllegalArgumentException("At least one requestor is required");
+        }
+        Set<String> namespaces = new HashSet<>();
+        for (FhirRequestor requestor : requestors) {
+            if (requestor.getDictionary() != requestors.get(0).getDictionary()) {
+                throw new IllegalArgumentException("All requestors have to share one patient id dictionary");
+            }
+            namespaces.add(requestor.getPatientIdNamespace());
+        }
+        this.requestors = List.copyOf(requestors);
+        this.disjointSources = requestors.size() == 1 ||
+                (namespaces.size() == requestors.size() && !namespaces.contains(""));
     }
 
+    /**
+     * Get all ids fulfilling a given criterion, encoded by the dictionary of the requestors.
+     * The returned bitmap may be shared with the cache and must not be modified.
+     */
+    public CompletableFuture<ImmutableRoaringBitmap> getPatientIdsFittingCriterion(Criterion criterion,
+                                                                                   SearchScope scope) {
+        return unionOfSources(requestor -> requestor.executeAsBitmap(criterion, scope));
+    }
+
+    /**
+     * Count the patients fulfilling a given criterion, by the FHIR servers where that is exact. Counts of several
+     * servers are only added up if their patient ids are namespaced, otherwise the patients found are united.
+     */
+    public CompletableFuture<Integer> countPatientsFittingCriterion(Criterion criterion, SearchScope scope) {
+        if (!disjointSources) {
+            return getPatientIdsFittingCriterion(criterion, scope).thenApply(ImmutableRoaringBitmap::getCardinality);
+        }
+        List<CompletableFuture<Integer>> counts = requestors.stream()
+                .map(requestor -> requestor.countPatients(criterion, scope)).toList();
+        return CompletableFuture.allOf(counts.toArray(CompletableFuture[]::new))
+                .thenApply(unused -> counts.stream().mapToInt(CompletableFuture::join).sum());
+    }
+
+    /**
+     * Get the ids of the given candidates fulfilling any of the given criteria, by searches restricted to the
+     * candidates unless the criteria are cached. The result may contain other patients as well and must not be
+     * modified.
+     */
+    public CompletableFuture<ImmutableRoaringBitmap> getCandidatesFittingAnyCriterion(List<Criterion> criteria,
+                                                                                     ImmutableRoaringBitmap candidates,
+                                                                                     SearchScope scope) {
+        return unionOfSources(requestor -> requestor.executeForCandidates(criteria, candidates, scope));
+    }
+
+    /**
+     * Estimate the number of patients fulfilling a given criterion without fetching them, summed over all FHIR servers.
+     * The estimate is an upper bound, failing if a server can not count the criterion.
+     */
+    public CompletableFuture<Integer> estimatePatientCount(Criterion criterion, SearchScope scope) {
+        List<CompletableFuture<Integer>> estimates = requestors.stream()
+                .map(requestor -> requestor.estimatePatientCount(criterion, scope)).toList();
+        return CompletableFuture.allOf(estimates.toArray(CompletableFuture[]::new))
+                .thenApply(unused -> (int) Math.min(Integer.MAX_VALUE,
+                        estimates.stream().mapToLong(CompletableFuture::join).sum()));
+    }
 
+    /**
+     * Get all ids fulfilling any of the given criteria, encoded by the dictionary of the requestors.
+     * The union is cached by each requestor, the returned bitmap must not be modified.
+     */
+    public CompletableFuture<ImmutableRoaringBitmap> getPatientIdsFittingAnyCriterion(List<Criterion> criteria,
+                                                                                      SearchScope scope) {
+        return unionOfSources(requestor -> requestor.executeUnionAsBitmap(criteria, scope));
+    }
+
+    private CompletableFuture<ImmutableRoaringBitmap> unionOfSources(
+            Function<FhirRequestor, CompletableFuture<ImmutableRoaringBitmap>> search) {
+        if (requestors.size() == 1) {
+            return search.apply(requestors.get(0));
+        }
+        return IdSetAccumulator.union(requestors.stream().map(search));
+    }
 }
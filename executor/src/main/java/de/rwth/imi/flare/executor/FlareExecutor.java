@@ -4,10 +4,18 @@ import de.rwth.imi.flare.api.model.CriteriaGroup;
 import de.rwth.imi.flare.api.model.Criterion;
 import de.rwth.imi.flare.api.model.QueryExpanded;
 import de.rwth.imi.flare.requestor.FhirRequestor;
+import de.rwth.imi.flare.requestor.IdSetAccumulator;
+import de.rwth.imi.flare.requestor.SearchScope;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 /**
@@ -17,26 +25,111 @@ import java.util.stream.Collectors;
 public class FlareExecutor implements de.rwth.imi.flare.api.Executor {
     private final FhirRequestor requestor;
     private final FhirIdRequestor fhirIdRequestor;
+    // null if cost-based planning is disabled
+    private final CostBasedPlanner planner;
+    private final int semiJoinThreshold;
+    private final boolean lazyExclusionEnabled;
 
     public FlareExecutor(FhirRequestor requestor) {
-        this.requestor = requestor;
-        this.fhirIdRequestor = new FhirIdRequestor(requestor);
+        this(requestor, new FhirIdRequestor(requestor));
+    }
+
+    /**
+     * Executes queries across several FHIR servers, uniting the patients found on each of them
+     *
+     * @param requestors one requestor per FHIR server, sharing one patient id dictionary. Scopes are opened and
+     *                   criteria translated by the first of them
+     */
+    public FlareExecutor(List<FhirRequestor> requestors) {
+        this(requestors, new FlareExecutorConfig() {});
+    }
+
+    public FlareExecutor(List<FhirRequestor> requestors, FlareExecutorConfig config) {
+        this(requestors.get(0), new FhirIdRequestor(requestors), config);
+    }
 
+    public FlareExecutor(FhirRequestor requestor, FhirIdRequestor fhirIdRequestor) {
+        this(requestor, fhirIdRequestor, new FlareExecutorConfig() {});
+    }
+
+    public FlareExecutor(FhirRequestor requestor, FhirIdRequestor fhirIdRequestor, FlareExecutorConfig config) {
+        this.requestor = requestor;
+        this.fhirIdRequestor = fhirIdRequestor;
+        this.planner = config.isCostBasedPlanningEnabled()
+                ? new CostBasedPlanner(fhirIdRequestor, config.getMaxEstimatedCriteriaPerGroup()) : null;
+        this.semiJoinThreshold = config.getSemiJoinThreshold();
+        this.lazyExclusionEnabled = config.isLazyExclusionEnabled();
     }
 
     @Override
     public CompletableFuture<Integer> calculatePatientCount(QueryExpanded mappedQuery) {
-        CompletableFuture<Set<String>> includedIds = getIncludedIds(mappedQuery.getInclusionCriteria());
-        CompletableFuture<Set<String>> excludedIds = getExcludedIds(mappedQuery.getExclusionCriteria());
-        CompletableFuture<Set<String>> resultingIds = includedIds.thenCombine(excludedIds, (strings, strings2) ->
-        {
-            if (strings2 != null) {
-                strings.removeAll(strings2);
+        return calculatePatientCount(mappedQuery, (Instant) null);
+    }
+
+    /**
+     * The searches of the query are executed within one scope, which is closed as soon as the returned future
+     * completes, whether the count is known, it has been cancelled or the deadline has passed
+     */
+    @Override
+    public CompletableFuture<Integer> calculatePatientCount(QueryExpanded mappedQuery, Instant deadline) {
+        SearchScope scope = requestor.openScope();
+        CompletableFuture<Integer> count;
+        try {
+            count = countPatients(mappedQuery, scope);
+        } catch (RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        count.whenComplete((patientCount, e) -> {
+            if (e == null) {
+                result.complete(patientCount);
+            } else {
+                result.completeExceptionally(e);
             }
-            return strings;
         });
+        result.whenComplete((patientCount, e) -> scope.close());
+        if (deadline != null) {
+            result.orTimeout(Math.max(0, Duration.between(Instant.now(), deadline).toMillis()), TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    private CompletableFuture<Integer> countPatients(QueryExpanded mappedQuery, SearchScope scope) {
+        Optional<Criterion> singleCriterion = getSingleCriterion(mappedQuery);
+        if (singleCriterion.isPresent()) {
+            return fhirIdRequestor.countPatientsFittingCriterion(singleCriterion.get(), scope);
+        }
+        CompletableFuture<ImmutableRoaringBitmap> includedIds = getIncludedIds(mappedQuery.getInclusionCriteria(), scope);
+        if (lazyExclusionEnabled) {
+            return includedIds.thenCompose(included -> countIncludedNotExcluded(included,
+                    mappedQuery.getExclusionCriteria(), scope));
+        }
+        CompletableFuture<ImmutableRoaringBitmap> excludedIds = getExcludedIds(mappedQuery.getExclusionCriteria(), scope);
+        // Without included patients, there is no need to wait for the excluded ones
+        CompletableFuture<ImmutableRoaringBitmap> resultingIds = includedIds.thenCompose(included ->
+                included.isEmpty() ? CompletableFuture.completedFuture(included) : excludedIds.thenApply(excluded -> {
+                    if (excluded != null) {
+                        return ImmutableRoaringBitmap.andNot(included, excluded);
+                    }
+                    return included;
+                }));
+
+        return resultingIds.thenApply(ImmutableRoaringBitmap::getCardinality);
+    }
 
-        return resultingIds.thenApply(Set::size);
+    /**
+     * Queries consisting of a single inclusion criterion can be counted without combining any sets
+     */
+    private static Optional<Criterion> getSingleCriterion(QueryExpanded mappedQuery) {
+        List<CriteriaGroup> inclusionCriteria = mappedQuery.getInclusionCriteria();
+        List<List<CriteriaGroup>> exclusionCriteria = mappedQuery.getExclusionCriteria();
+        boolean noExclusions = exclusionCriteria == null || exclusionCriteria.stream().allMatch(List::isEmpty);
+        if (!noExclusions || inclusionCriteria == null || inclusionCriteria.size() != 1
+                || inclusionCriteria.get(0).getCriteria().size() != 1) {
+            return Optional.empty();
+        }
+        return Optional.of(inclusionCriteria.get(0).getCriteria().get(0));
     }
 
     /**
@@ -91,106 +184,157 @@ public class FlareExecutor implements de.rwth.imi.flare.api.Executor {
     /**
      * Build intersection of all group sets
      */
-    private CompletableFuture<Set<String>> getIncludedIds(List<CriteriaGroup> inclusionCriteria) {
-        if (inclusionCriteria == null) {
-            return CompletableFuture.completedFuture(new HashSet<>());
-        }
-        // Async fetch all ids per group
-        List<CompletableFuture<Set<String>>> includedIdsByGroup =
-                inclusionCriteria.stream().map(this::getIdsFittingInclusionGroup).toList();
-
-        // Wait for async exec to finish
-        CompletableFuture<Void> groupExecutionFinished = CompletableFuture
-                .allOf(includedIdsByGroup.toArray(new CompletableFuture[0]));
-
-        return groupExecutionFinished.thenApply(unused -> {
-            Iterator<CompletableFuture<Set<String>>> includedGroupsIterator = includedIdsByGroup.iterator();
-            try {
-                Set<String> evaluableCriterion = null;
-                if (includedGroupsIterator.hasNext()) {
-                    evaluableCriterion = includedGroupsIterator.next().get();
-                }
-                while (includedGroupsIterator.hasNext()) {
-                    evaluableCriterion.retainAll(includedGroupsIterator.next().get());
+    private CompletableFuture<ImmutableRoaringBitmap> getIncludedIds(List<CriteriaGroup> inclusionCriteria,
+                                                                     SearchScope scope) {
+        if (inclusionCriteria == null || inclusionCriteria.isEmpty()) {
+            return CompletableFuture.completedFuture(new MutableRoaringBitmap());
+        }
+        return withinNestedScope(scope, conjunctionScope -> {
+            if (planner != null && inclusionCriteria.size() > 1) {
+                return planner.plan(inclusionCriteria, conjunctionScope).thenCompose(plannedGroups ->
+                        getIntersectionInPlannedOrder(plannedGroups, conjunctionScope));
+            }
+            // Async fetch all ids per group
+            return getIntersectionOfIds(inclusionCriteria.stream()
+                    .map(group -> getIdsFittingInclusionGroup(group, conjunctionScope)));
+        });
+    }
+
+    /**
+     * Evaluates a conjunction within a nested scope, which is closed as soon as its result is known. Once a group is
+     * known to be empty, the searches of the other groups no other query waits for are thus cancelled
+     */
+    private static CompletableFuture<ImmutableRoaringBitmap> withinNestedScope(SearchScope scope,
+            Function<SearchScope, CompletableFuture<ImmutableRoaringBitmap>> conjunction) {
+        SearchScope nestedScope = scope.openNested();
+        CompletableFuture<ImmutableRoaringBitmap> ids;
+        try {
+            ids = conjunction.apply(nestedScope);
+        } catch (RuntimeException e) {
+            nestedScope.close();
+            throw e;
+        }
+        ids.whenComplete((result, e) -> nestedScope.close());
+        return ids;
+    }
+
+    /**
+     * Fetches the most selective group first and the others only if it matches any patient. Nothing is fetched if a
+     * group is known to match no patient, all groups are fetched at once if none could be estimated.<br>
+     * If the most selective group matches few patients, the other groups are only searched for these candidates,
+     * unless they are estimated to be smaller than the candidates anyway
+     */
+    private CompletableFuture<ImmutableRoaringBitmap> getIntersectionInPlannedOrder(
+            List<CostBasedPlanner.PlannedGroup> plannedGroups, SearchScope scope) {
+        int smallestSize = plannedGroups.get(0).getEstimatedSize();
+        if (smallestSize == 0) {
+            return CompletableFuture.completedFuture(new MutableRoaringBitmap());
+        }
+        if (smallestSize == CostBasedPlanner.UNKNOWN_SIZE) {
+            return getIntersectionOfIds(plannedGroups.stream()
+                    .map(plannedGroup -> getIdsFittingInclusionGroup(plannedGroup.getGroup(), scope)));
+        }
+        return getIdsFittingInclusionGroup(plannedGroups.get(0).getGroup(), scope).thenCompose(mostSelectiveIds -> {
+            if (mostSelectiveIds.isEmpty()) {
+                return CompletableFuture.completedFuture(mostSelectiveIds);
+            }
+            int candidateCount = mostSelectiveIds.getCardinality();
+            IdSetAccumulator intersection = IdSetAccumulator.intersection();
+            intersection.add(CompletableFuture.completedFuture(mostSelectiveIds));
+            for (CostBasedPlanner.PlannedGroup plannedGroup : plannedGroups.subList(1, plannedGroups.size())) {
+                if (candidateCount <= semiJoinThreshold && plannedGroup.getEstimatedSize() > candidateCount) {
+                    intersection.add(fhirIdRequestor.getCandidatesFittingAnyCriterion(
+                            plannedGroup.getGroup().getCriteria(), mostSelectiveIds, scope));
+                } else {
+                    intersection.add(getIdsFittingInclusionGroup(plannedGroup.getGroup(), scope));
                 }
-                return evaluableCriterion;
-            } catch (InterruptedException | ExecutionException e) {
-                throw new CompletionException(e);
             }
+            return intersection.result();
         });
     }
 
     /**
-     * Union all criteria sets for a given group
+     * Union all criteria sets for a given group, the union of expanded concepts is cached by the requestor
      */
-    private CompletableFuture<Set<String>> getIdsFittingInclusionGroup(CriteriaGroup group) {
-        final List<CompletableFuture<Set<String>>> idsPerCriterion = group.getCriteria().stream()
-                .map(fhirIdRequestor::getPatientIdsFittingCriterion).toList();
+    private CompletableFuture<ImmutableRoaringBitmap> getIdsFittingInclusionGroup(CriteriaGroup group,
+                                                                                  SearchScope scope) {
+        List<Criterion> criteria = group.getCriteria();
+        if (criteria.size() == 1) {
+            return fhirIdRequestor.getPatientIdsFittingCriterion(criteria.get(0), scope);
+        }
+        return fhirIdRequestor.getPatientIdsFittingAnyCriterion(criteria, scope);
+    }
 
-        // Wait for all queries to finish execution
-        return getUnionOfIds(idsPerCriterion);
+    /**
+     * Evaluates the exclusion criteria against the included patients only (anti-join), skipping them if no patient
+     * is included
+     */
+    private CompletableFuture<Integer> countIncludedNotExcluded(ImmutableRoaringBitmap includedIds,
+                                                                List<List<CriteriaGroup>> exclusionCriteria,
+                                                                SearchScope scope) {
+        if (includedIds.isEmpty() || exclusionCriteria == null || exclusionCriteria.isEmpty()) {
+            return CompletableFuture.completedFuture(includedIds.getCardinality());
+        }
+        CompletableFuture<ImmutableRoaringBitmap> excludedIds = includedIds.getCardinality() <= semiJoinThreshold
+                ? getExcludedCandidates(exclusionCriteria, includedIds, scope)
+                : getExcludedIds(exclusionCriteria, scope);
+        return excludedIds.thenApply(excluded -> ImmutableRoaringBitmap.andNot(includedIds, excluded).getCardinality());
+    }
+
+    /**
+     * Build union of all group sets, each searched for the given candidates only
+     */
+    private CompletableFuture<ImmutableRoaringBitmap> getExcludedCandidates(List<List<CriteriaGroup>> exclusionCriteria,
+                                                                            ImmutableRoaringBitmap candidates,
+                                                                            SearchScope scope) {
+        IdSetAccumulator excludedIds = IdSetAccumulator.union();
+        for (List<CriteriaGroup> groups : exclusionCriteria) {
+            excludedIds.add(withinNestedScope(scope, conjunctionScope -> getIntersectionOfIds(groups.stream()
+                    .map(group -> fhirIdRequestor.getCandidatesFittingAnyCriterion(group.getCriteria(), candidates,
+                            conjunctionScope)))));
+        }
+        return excludedIds.result();
     }
 
     /**
      * Build union of all group sets
      */
-    private CompletableFuture<Set<String>> getExcludedIds(List<List<CriteriaGroup>> exclusionCriteria) {
+    private CompletableFuture<ImmutableRoaringBitmap> getExcludedIds(List<List<CriteriaGroup>> exclusionCriteria,
+                                                                     SearchScope scope) {
         if (exclusionCriteria == null) {
-            return CompletableFuture.completedFuture(new HashSet<>());
+            return CompletableFuture.completedFuture(new MutableRoaringBitmap());
         }
-        List<CompletableFuture<Set<String>>> excludedIdsByGroups = new ArrayList<>();
+        // Each group is folded into the union as soon as it arrives, see IdSetAccumulator
+        IdSetAccumulator excludedIds = IdSetAccumulator.union();
         for (List<CriteriaGroup> group : exclusionCriteria) {
-            CompletableFuture<Set<String>> excludedIdsByGroup = getIncludedIds(group);
-            excludedIdsByGroups.add(excludedIdsByGroup);
+            excludedIds.add(getIncludedIds(group, scope));
         }
-        // Wait for async exec to finish
-        return getUnionOfIds(excludedIdsByGroups);
+        return excludedIds.result();
     }
 
-    private CompletableFuture<Set<String>> getUnionOfIds(List<CompletableFuture<Set<String>>> idsByGroups) {
-        CompletableFuture<Void> groupExecutionFinished = CompletableFuture
-                .allOf(idsByGroups.toArray(new CompletableFuture[0]));
-
-        return groupExecutionFinished.thenApply(unused -> {
-            Iterator<CompletableFuture<Set<String>>> includedGroupsIterator = idsByGroups.iterator();
-            try {
-                Set<String> ret = new HashSet<String>();
-                while (includedGroupsIterator.hasNext()) {
-                    ret.addAll(includedGroupsIterator.next().get());
-                }
-                return ret;
-            } catch (ExecutionException | InterruptedException e) {
-                throw new CompletionException(e);
-            }
-        });
+    /**
+     * The bitmaps of single criteria are shared with the cache, so the set operations always create new bitmaps.
+     * Completes as soon as the running intersection is empty or any of the sets has failed, without waiting for the
+     * others
+     */
+    private CompletableFuture<ImmutableRoaringBitmap> getIntersectionOfIds(
+            Stream<CompletableFuture<ImmutableRoaringBitmap>> idsByGroups) {
+        return IdSetAccumulator.intersection(idsByGroups);
     }
 
     /**
      * Intersect all criteria sets for a given group
      */
-    private CompletableFuture<Set<String>> getIdsFittingExclusionGroup(List<CriteriaGroup> groups) {
-        final List<CompletableFuture<Set<String>>> idsPerCriterion = new ArrayList<>();
+    private CompletableFuture<ImmutableRoaringBitmap> getIdsFittingExclusionGroup(List<CriteriaGroup> groups,
+                                                                                  SearchScope scope) {
+        IdSetAccumulator idsPerCriterion = IdSetAccumulator.intersection();
         for (CriteriaGroup group : groups) {
             for (Criterion criterion : group.getCriteria()) {
-                CompletableFuture<Set<String>> evaluableCriterion = fhirIdRequestor.getPatientIdsFittingCriterion(criterion);
+                CompletableFuture<ImmutableRoaringBitmap> evaluableCriterion = fhirIdRequestor.getPatientIdsFittingCriterion(criterion, scope);
                 idsPerCriterion.add(evaluableCriterion);
             }
         }
-        // Wait for all queries to finish execution
-        CompletableFuture<Void> allPatientIdsReceived = CompletableFuture.allOf(idsPerCriterion.toArray(new CompletableFuture[0]));
-
         // Return intersection of found ids
-        return allPatientIdsReceived.thenApply(unused -> {
-            Iterator<CompletableFuture<Set<String>>> iterator = idsPerCriterion.iterator();
-            try {
-                Set<String> ret = iterator.next().get();
-                while (iterator.hasNext()) {
-                    ret.retainAll(iterator.next().get());
-                }
-                return ret;
-            } catch (ExecutionException | InterruptedException e) {
-                throw new CompletionException(e);
-            }
-        });
+        return idsPerCriterion.result();
     }
 }
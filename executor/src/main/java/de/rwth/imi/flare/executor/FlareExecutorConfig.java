@@ -0,0 +1,44 @@
+package de.rwth.imi.flare.executor;
+
+public interface FlareExecutorConfig {
+
+    /**
+     *
+     * @return whether the groups of a conjunction are evaluated in the order of their estimated number of patients,
+     * see {@link CostBasedPlanner}. Costs one count request per criterion that is not cached yet
+     */
+    default boolean isCostBasedPlanningEnabled() {
+        return false;
+    }
+
+    /**
+     *
+     * @return maximum number of criteria of a group whose sizes are estimated, larger groups, e.g. broad concepts
+     * expanded to hundreds of codes, are assumed to be unselective instead of sending a count for each of them
+     */
+    default int getMaxEstimatedCriteriaPerGroup() {
+        return 8;
+    }
+
+    /**
+     *
+     * @return number of patients up to which criteria are searched for these patients only instead of the whole
+     * population: the other groups of a conjunction once the group evaluated first by the
+     * {@link CostBasedPlanner} leaves this few candidates, and exclusion criteria once this few patients are included,
+     * see {@link #isLazyExclusionEnabled()}. The former requires cost-based planning, the latter lazy exclusion.
+     * 0 to disable both
+     */
+    default int getSemiJoinThreshold() {
+        return 0;
+    }
+
+    /**
+     *
+     * @return whether exclusion criteria are only evaluated once the included patients are known, skipping them if no
+     * patient is included and searching them for the included patients only if these are fewer than the
+     * {@link #getSemiJoinThreshold()}. Otherwise inclusion and exclusion criteria are evaluated at the same time
+     */
+    default boolean isLazyExclusionEnabled() {
+        return false;
+    }
+}
@@ -6,9 +6,12 @@ import de.rwth.imi.flare.api.model.TerminologyCode;
 import de.rwth.imi.flare.executor.AuthlessRequestorConfig;
 import de.rwth.imi.flare.executor.FhirIdRequestor;
 import de.rwth.imi.flare.executor.FlareExecutor;
+import de.rwth.imi.flare.executor.FlareExecutorConfig;
 import de.rwth.imi.flare.requestor.CacheConfig;
 import de.rwth.imi.flare.requestor.FhirRequestor;
 import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.PatientIdDictionary;
+import de.rwth.imi.flare.requestor.SearchScope;
 import java.util.concurrent.Executors;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.BeforeEach;
@@ -16,14 +19,27 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.roaringbitmap.buffer.BufferFastAggregation;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -44,6 +60,7 @@ public class ExecutorTests {
     Criterion inclCriterion;
     @Mock
     FhirIdRequestor fhirIdRequestor;
+    FhirRequestor fhirRequestor;
     FlareExecutor flareExecutor;
     QueryExpanded queryExpanded;
 
@@ -70,7 +87,8 @@ public class ExecutorTests {
                 return 1;
             }
         };
-        flareExecutor = new FlareExecutor(new FhirRequestor(config, cacheConfig, Executors.newFixedThreadPool(16)));
+        fhirRequestor = new FhirRequestor(config, cacheConfig, Executors.newFixedThreadPool(16));
+        flareExecutor = new FlareExecutor(fhirRequestor, fhirIdRequestor);
         queryExpanded = getQueryExpanded();
     }
 
@@ -150,22 +168,202 @@ public class ExecutorTests {
         assertEquals(4, number.get());
     }
 
+    @Test
+    void calculatePatientCountOfSingleCriterionIsCountedDirectly() throws ExecutionException, InterruptedException {
+        QueryExpanded singleCriterionQuery = new QueryExpanded();
+        singleCriterionQuery.setInclusionCriteria(getInclusionCriteriaGroups());
+        singleCriterionQuery.setExclusionCriteria(List.of());
+        when(fhirIdRequestor.countPatientsFittingCriterion(eq(inclCriterion), any()))
+                .thenReturn(CompletableFuture.completedFuture(42));
+
+        assertEquals(42, flareExecutor.calculatePatientCount(singleCriterionQuery).get());
+    }
+
+    @Test
+    void calculatePatientCountPastDeadlineClosesScope() {
+        QueryExpanded singleCriterionQuery = new QueryExpanded();
+        singleCriterionQuery.setInclusionCriteria(getInclusionCriteriaGroups());
+        singleCriterionQuery.setExclusionCriteria(List.of());
+        List<SearchScope> scopes = new ArrayList<>();
+        when(fhirIdRequestor.countPatientsFittingCriterion(eq(inclCriterion), any())).thenAnswer(invocation -> {
+            scopes.add(invocation.getArgument(1));
+            return new CompletableFuture<Integer>();
+        });
+
+        CompletableFuture<Integer> number = flareExecutor.calculatePatientCount(singleCriterionQuery,
+                Instant.now().plusMillis(50));
+
+        ExecutionException e = assertThrows(ExecutionException.class, number::get);
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertTrue(scopes.get(0).isClosed());
+    }
+
+    @Test
+    void plannedConjunctionSkipsGroupsOnceAGroupIsKnownToBeEmpty() throws ExecutionException, InterruptedException {
+        FlareExecutor plannedExecutor = new FlareExecutor(fhirRequestor, fhirIdRequestor, new FlareExecutorConfig() {
+            @Override
+            public boolean isCostBasedPlanningEnabled() {
+                return true;
+            }
+        });
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(inclCriterion), any()))
+                .thenReturn(CompletableFuture.completedFuture(dictionary.encodeAll(List.of("0", "1", "2"))));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionC), any()))
+                .thenReturn(CompletableFuture.completedFuture(dictionary.encodeAll(List.of("2"))));
+        when(fhirIdRequestor.estimatePatientCount(any(), any())).thenAnswer(invocation ->
+                CompletableFuture.completedFuture(invocation.getArgument(0) == criterionB ? 0 : 1000));
+
+        // Inclusion / ( ( (A v A1 v A2) ^ B) v C), B matches no patient
+        assertEquals(2, plannedExecutor.calculatePatientCount(queryExpanded).get());
+        verify(fhirIdRequestor, never()).getPatientIdsFittingAnyCriterion(anyList(), any());
+        verify(fhirIdRequestor, never()).getPatientIdsFittingCriterion(eq(criterionB), any());
+    }
+
+    @Test
+    void plannedConjunctionSearchesBroadGroupsForCandidatesOnly() throws ExecutionException, InterruptedException {
+        FlareExecutor plannedExecutor = new FlareExecutor(fhirRequestor, fhirIdRequestor, new FlareExecutorConfig() {
+            @Override
+            public boolean isCostBasedPlanningEnabled() {
+                return true;
+            }
+
+            @Override
+            public int getSemiJoinThreshold() {
+                return 10;
+            }
+        });
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(inclCriterion), any())).thenReturn(
+                CompletableFuture.completedFuture(dictionary.encodeAll(List.of("0", "1", "2", "3", "4"))));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionB), any()))
+                .thenReturn(CompletableFuture.completedFuture(dictionary.encodeAll(List.of("0", "1"))));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionC), any()))
+                .thenReturn(CompletableFuture.completedFuture(dictionary.encodeAll(List.of("2"))));
+        when(fhirIdRequestor.estimatePatientCount(any(), any())).thenAnswer(invocation ->
+                CompletableFuture.completedFuture(invocation.getArgument(0) == criterionB ? 2 : 1000));
+        when(fhirIdRequestor.getCandidatesFittingAnyCriterion(anyList(), any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(dictionary.encodeAll(List.of("0"))));
+
+        // Inclusion / ( ( (A v A1 v A2) ^ B) v C), only patients 0 and 1 of B are checked for A
+        assertEquals(3, plannedExecutor.calculatePatientCount(queryExpanded).get());
+        verify(fhirIdRequestor).getCandidatesFittingAnyCriterion(eq(List.of(criterionA, criterionA1, criterionA2)),
+                eq(dictionary.encodeAll(List.of("0", "1"))), any());
+        verify(fhirIdRequestor, never()).getPatientIdsFittingAnyCriterion(anyList(), any());
+    }
+
+    @Test
+    void lazyExclusionIsSkippedWithoutIncludedPatients() throws ExecutionException, InterruptedException {
+        FlareExecutor lazyExecutor = new FlareExecutor(fhirRequestor, fhirIdRequestor, new FlareExecutorConfig() {
+            @Override
+            public boolean isLazyExclusionEnabled() {
+                return true;
+            }
+        });
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(inclCriterion), any()))
+                .thenReturn(CompletableFuture.completedFuture(new PatientIdDictionary().encodeAll(List.of())));
+
+        assertEquals(0, lazyExecutor.calculatePatientCount(queryExpanded).get());
+        verify(fhirIdRequestor, never()).getPatientIdsFittingCriterion(eq(criterionC), any());
+        verify(fhirIdRequestor, never()).getPatientIdsFittingAnyCriterion(anyList(), any());
+    }
+
+    @Test
+    void lazyExclusionChecksIncludedPatientsOnly() throws ExecutionException, InterruptedException {
+        FlareExecutor lazyExecutor = new FlareExecutor(fhirRequestor, fhirIdRequestor, new FlareExecutorConfig() {
+            @Override
+            public boolean isLazyExclusionEnabled() {
+                return true;
+            }
+
+            @Override
+            public int getSemiJoinThreshold() {
+                return 10;
+            }
+        });
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        ImmutableRoaringBitmap includedIds = dictionary.encodeAll(List.of("0", "1", "2"));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(inclCriterion), any()))
+                .thenReturn(CompletableFuture.completedFuture(includedIds));
+        when(fhirIdRequestor.getCandidatesFittingAnyCriterion(anyList(), eq(includedIds), any()))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(
+                        invocation.getArgument(0).equals(List.of(criterionC))
+                                ? dictionary.encodeAll(List.of("2")) : dictionary.encodeAll(List.of())));
+
+        // Inclusion / ( ( (A v A1 v A2) ^ B) v C), C excludes patient 2
+        assertEquals(2, lazyExecutor.calculatePatientCount(queryExpanded).get());
+        verify(fhirIdRequestor, never()).getPatientIdsFittingCriterion(eq(criterionC), any());
+    }
+
+    @Test
+    void emptyGroupCompletesConjunctionAndClosesScopeOfOtherGroups() throws ExecutionException, InterruptedException {
+        List<CriteriaGroup> inclusionGroups = new ArrayList<>(queryExpanded.getInclusionCriteria());
+        CriteriaGroup emptyGroup = new CriteriaGroup();
+        emptyGroup.setCriteria(List.of(criterionB));
+        inclusionGroups.add(emptyGroup);
+        QueryExpanded conjunctionQuery = new QueryExpanded();
+        conjunctionQuery.setInclusionCriteria(inclusionGroups);
+        conjunctionQuery.setExclusionCriteria(queryExpanded.getExclusionCriteria());
+        List<SearchScope> scopes = new ArrayList<>();
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(any(), any())).thenAnswer(invocation -> {
+            scopes.add(invocation.getArgument(1));
+            return invocation.getArgument(0) == criterionB
+                    ? CompletableFuture.completedFuture(new PatientIdDictionary().encodeAll(List.of()))
+                    : new CompletableFuture<ImmutableRoaringBitmap>();
+        });
+        lenient().when(fhirIdRequestor.getPatientIdsFittingAnyCriterion(anyList(), any()))
+                .thenReturn(new CompletableFuture<>());
+
+        // Neither the inclusion criterion nor any exclusion criterion ever answers
+        assertEquals(0, flareExecutor.calculatePatientCount(conjunctionQuery).get());
+        assertTrue(scopes.stream().allMatch(SearchScope::isClosed));
+    }
+
+    @Test
+    void patientsOfSeveralServersAreUnited() throws ExecutionException, InterruptedException {
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        FhirRequestor serverA = mockServer(dictionary, List.of("0", "1", "2"));
+        FhirRequestor serverB = mockServer(dictionary, List.of("2", "3"));
+        FhirIdRequestor federatedRequestor = new FhirIdRequestor(List.of(serverA, serverB));
+
+        // Without namespaces, patient 2 is the same on both servers
+        assertEquals(4, federatedRequestor.countPatientsFittingCriterion(inclCriterion, null).get());
+    }
+
+    private FhirRequestor mockServer(PatientIdDictionary dictionary, List<String> patientIds) {
+        FhirRequestor server = mock(FhirRequestor.class);
+        when(server.getDictionary()).thenReturn(dictionary);
+        when(server.getPatientIdNamespace()).thenReturn("");
+        when(server.executeAsBitmap(inclCriterion, null))
+                .thenReturn(CompletableFuture.completedFuture(dictionary.encodeAll(patientIds)));
+        return server;
+    }
+
     private void mockGetIds(Map<String, List<String>> ids) {
         if (ids.size() != 6) {
             throw new IllegalArgumentException("The number of Id-lists need to be 6, for A, A1, A2, B and C.");
         }
-        CompletableFuture<Set<String>> includedIds = CompletableFuture.supplyAsync(() -> new HashSet<>(ids.get("Inclusion")));
-        when(fhirIdRequestor.getPatientIdsFittingCriterion(inclCriterion)).thenReturn(includedIds);
-        CompletableFuture<Set<String>> excludedIdsA = CompletableFuture.supplyAsync(() -> new HashSet<>(ids.get("A")));
-        when(fhirIdRequestor.getPatientIdsFittingCriterion(criterionA)).thenReturn(excludedIdsA);
-        CompletableFuture<Set<String>> excludedIdsA1 = CompletableFuture.supplyAsync(() -> new HashSet<>(ids.get("A1")));
-        when(fhirIdRequestor.getPatientIdsFittingCriterion(criterionA1)).thenReturn(excludedIdsA1);
-        CompletableFuture<Set<String>> excludedIdsA2 = CompletableFuture.supplyAsync(() -> new HashSet<>(ids.get("A2")));
-        when(fhirIdRequestor.getPatientIdsFittingCriterion(criterionA2)).thenReturn(excludedIdsA2);
-        CompletableFuture<Set<String>> excludedIdsB = CompletableFuture.supplyAsync(() -> new HashSet<>(ids.get("B")));
-        when(fhirIdRequestor.getPatientIdsFittingCriterion(criterionB)).thenReturn(excludedIdsB);
-        CompletableFuture<Set<String>> excludedIdsC = CompletableFuture.supplyAsync(() -> new HashSet<>(ids.get("C")));
-        when(fhirIdRequestor.getPatientIdsFittingCriterion(criterionC)).thenReturn(excludedIdsC);
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        CompletableFuture<ImmutableRoaringBitmap> includedIds = CompletableFuture.supplyAsync(() -> dictionary.encodeAll(ids.get("Inclusion")));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(inclCriterion), any())).thenReturn(includedIds);
+        CompletableFuture<ImmutableRoaringBitmap> excludedIdsA = CompletableFuture.supplyAsync(() -> dictionary.encodeAll(ids.get("A")));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionA), any())).thenReturn(excludedIdsA);
+        CompletableFuture<ImmutableRoaringBitmap> excludedIdsA1 = CompletableFuture.supplyAsync(() -> dictionary.encodeAll(ids.get("A1")));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionA1), any())).thenReturn(excludedIdsA1);
+        CompletableFuture<ImmutableRoaringBitmap> excludedIdsA2 = CompletableFuture.supplyAsync(() -> dictionary.encodeAll(ids.get("A2")));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionA2), any())).thenReturn(excludedIdsA2);
+        CompletableFuture<ImmutableRoaringBitmap> excludedIdsB = CompletableFuture.supplyAsync(() -> dictionary.encodeAll(ids.get("B")));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionB), any())).thenReturn(excludedIdsB);
+        CompletableFuture<ImmutableRoaringBitmap> excludedIdsC = CompletableFuture.supplyAsync(() -> dictionary.encodeAll(ids.get("C")));
+        when(fhirIdRequestor.getPatientIdsFittingCriterion(eq(criterionC), any())).thenReturn(excludedIdsC);
+        lenient().when(fhirIdRequestor.getPatientIdsFittingAnyCriterion(anyList(), any())).thenAnswer(invocation -> {
+            List<Criterion> criteria = invocation.getArgument(0);
+            SearchScope scope = invocation.getArgument(1);
+            List<CompletableFuture<ImmutableRoaringBitmap>> idsPerCriterion = criteria.stream()
+                    .map(criterion -> fhirIdRequestor.getPatientIdsFittingCriterion(criterion, scope)).toList();
+            return CompletableFuture.allOf(idsPerCriterion.toArray(new CompletableFuture[0])).thenApply(unused ->
+                    BufferFastAggregation.or(idsPerCriterion.stream().map(CompletableFuture::join).iterator()));
+        });
     }
 
     @NotNull
@@ -3,8 +3,11 @@ package de.rwth.imi.flare.api;
 import de.rwth.imi.flare.api.model.Query;
 import de.rwth.imi.flare.api.model.QueryExpanded;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Executor asynchronously executes an entire Query and aggregates the returned data
@@ -18,5 +21,22 @@ public interface Executor
      */
     CompletableFuture<Integer> calculatePatientCount(QueryExpanded mappedQuery);
 
+    /**
+     * Like {@link #calculatePatientCount(QueryExpanded)}, but gives up once the deadline has passed, failing with a
+     * TimeoutException. Implementations should abort the requests issued for this query alone once the returned
+     * future is cancelled or the deadline has passed, by default they are left running
+     * @param mappedQuery Query with all mapping information
+     * @param deadline time by which the count has to be known, null to wait as long as it takes
+     * @return A CompletableFuture that when executed yields the number of patients matching the given query
+     */
+    default CompletableFuture<Integer> calculatePatientCount(QueryExpanded mappedQuery, Instant deadline) {
+        CompletableFuture<Integer> count = calculatePatientCount(mappedQuery);
+        if (deadline == null) {
+            return count;
+        }
+        return count.orTimeout(Math.max(0, Duration.between(Instant.now(), deadline).toMillis()),
+                TimeUnit.MILLISECONDS);
+    }
+
     List<List<List<String>>> translateMappedQuery(QueryExpanded mappedQuery);
 }
@@ -13,13 +13,13 @@ import de.rwth.imi.flare.mapping.lookup.NaiveLookupMapping;
 import de.rwth.imi.flare.mapping.lookup.SourceMappingEntry;
 import de.rwth.imi.flare.parser.i2b2.ParserI2B2;
 import de.rwth.imi.flare.requestor.CacheConfig;
+import de.rwth.imi.flare.requestor.ExecutionMode;
 import de.rwth.imi.flare.requestor.FhirRequestor;
 import de.rwth.imi.flare.requestor.FhirRequestorConfig;
 import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
 
 import java.util.*;
 
-import java.util.concurrent.Executors;
 import org.jetbrains.annotations.Nullable;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -66,6 +66,9 @@ class CLI implements Callable<Integer> {
     @Option(names = {"-c", "pagecount"}, description = "Number of resources per page as result from fhir server")
     private String pagecount = "";
 
+    @Option(names = {"-m", "execution-mode"}, description = "Kind of threads the FHIR searches are executed on")
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
     private Executor executor;
 
     private final FhirResourceMapper mapping;
@@ -73,7 +76,6 @@ class CLI implements Callable<Integer> {
     private FlareParser parser;
 
     public CLI(FhirResourceMapper mapper) throws IOException {
-        createExecutor();
         mapping = mapper;
     }
 
@@ -107,6 +109,7 @@ class CLI implements Callable<Integer> {
     private void createExecutor() {
         Optional<Authenticator> auth = Optional.ofNullable(createAuthenticator());
 
+        FlareThreadPoolConfig threadPoolConfig = new FlareThreadPoolConfig(4, 16, 10, executionMode);
         FhirRequestorConfig config = new FhirRequestorConfig() {
             @Override
             public Optional<Authenticator> getAuthentication() {
@@ -131,7 +134,7 @@ class CLI implements Callable<Integer> {
 
             @Override
             public FlareThreadPoolConfig getThreadPoolConfig() {
-                return new FlareThreadPoolConfig(4, 16, 10);
+                return threadPoolConfig;
             }
 
         };
@@ -148,7 +151,7 @@ class CLI implements Callable<Integer> {
             }
         };
 
-        executor = new FlareExecutor(new FhirRequestor(config, cacheConfig, Executors.newFixedThreadPool(16)));
+        executor = new FlareExecutor(new FhirRequestor(config, cacheConfig, threadPoolConfig.createExecutorService()));
     }
 
     @Nullable
@@ -179,6 +182,8 @@ class CLI implements Callable<Integer> {
 
     @Override
     public Integer call() {
+        // options are only populated once the command is called
+        createExecutor();
         try {
 
             Query parsedQuery = parseQuery();
@@ -0,0 +1,89 @@
+package de.rwth.imi.flare.requestor;
+
+/**
+ * Adjusts the limit of an {@link InFlightRequestLimiter} to the observed behaviour of the FHIR server, following the
+ * additive increase, multiplicative decrease (AIMD) scheme of TCP congestion control.<br>
+ * Every finished request is a sample. While requests complete within {@link #LATENCY_TOLERANCE} times the long-term
+ * average latency and the limit is actually used, it grows by about one per limit requests. A slower request makes it
+ * shrink slightly, an overload signal such as a timeout or a 429/5xx status makes it shrink strongly. Throughput thus
+ * stays near the concurrency the server handles best, instead of every query flooding it up to the connection limit.
+ */
+public class AdaptiveConcurrencyLimit {
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Number of samples the long-term latency average spans
+    private static final double LATENCY_WINDOW = 100;
+    private static final double LATENCY_BACKOFF = 0.95;
+    private static final double OVERLOAD_BACKOFF = 0.5;
+
+    private final InFlightRequestLimiter limiter;
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private double averageLatencyNanos = Double.NaN;
+    private long overloadCount = 0;
+
+    /**
+     * @param limiter limiter whose limit is adjusted, starting with a quarter of the maximum
+     * @param minLimit limit never gone below, at least 1
+     * @param maxLimit limit never exceeded
+     */
+    public AdaptiveConcurrencyLimit(InFlightRequestLimiter limiter, int minLimit, int maxLimit){
+        if(minLimit < 1 || maxLimit < minLimit){
+            throw new IllegalArgumentException("Invalid limits " + minLimit + ".." + maxLimit);
+        }
+        this.limiter = limiter;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, maxLimit / 4);
+        limiter.setLimit((int) this.limit);
+    }
+
+    /**
+     * Records a request answered by the server
+     * @param latencyNanos time from sending the request until its response was read
+     * @param overloaded whether the response signalled overload, e.g. by a 429 or 503 status
+     */
+    public void onResponse(long latencyNanos, boolean overloaded){
+        int newLimit;
+        synchronized (this) {
+            if (overloaded) {
+                this.overloadCount++;
+                this.limit = Math.max(this.minLimit, this.limit * OVERLOAD_BACKOFF);
+            } else {
+                if (Double.isNaN(this.averageLatencyNanos)) {
+                    this.averageLatencyNanos = latencyNanos;
+                }
+                if (latencyNanos > LATENCY_TOLERANCE * this.averageLatencyNanos) {
+                    this.limit = Math.max(this.minLimit, this.limit * LATENCY_BACKOFF);
+                } else if (this.limiter.getInFlight() + 1 >= this.limit / 2) {
+                    // Only grow a limit that is needed, an idle client learns nothing about the server
+                    this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+                }
+                this.averageLatencyNanos += (latencyNanos - this.averageLatencyNanos) / LATENCY_WINDOW;
+            }
+            newLimit = (int) this.limit;
+        }
+        if (newLimit != this.limiter.getLimit()) {
+            this.limiter.setLimit(newLimit);
+        }
+    }
+
+    /**
+     * Records a request that timed out, which counts as overload
+     */
+    public void onTimeout(){
+        onResponse(0, true);
+    }
+
+    public synchronized double getAverageLatencyMillis(){
+        return Double.isNaN(this.averageLatencyNanos) ? 0 : this.averageLatencyNanos / 1e6;
+    }
+
+    public synchronized long getOverloadCount(){
+        return this.overloadCount;
+    }
+
+    public int getMaxLimit(){
+        return this.maxLimit;
+    }
+}
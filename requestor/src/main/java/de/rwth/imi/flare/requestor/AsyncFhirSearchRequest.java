@@ -0,0 +1,132 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Collects the patient ids referenced by all pages of a given FHIR search, encoded as bitmap, without holding a thread
+ * of the calling pool.<br>
+ * The first page is requested via {@link FhirHttpClient#sendAsync}, further pages via
+ * {@link FhirHttpClient#sendPageAsync}, the next page is requested as soon as its link has
+ * been read from the current page. No thread is held while waiting for a connection or a response, only while a page
+ * is streamed, on a reader thread of the client. Concurrency toward the FHIR server is therefore bounded by the
+ * in-flight request cap of the client, not by the size of the calling pool.
+ */
+@Slf4j
+public class AsyncFhirSearchRequest {
+    private final URI searchUri;
+    private final String resourceType;
+    private final FhirHttpClient client;
+    private final BundlePageParser bundleParser;
+    private final PatientIdDictionary dictionary;
+    private final String patientIdNamespace;
+    private final MutableRoaringBitmap patientIds = new MutableRoaringBitmap();
+    private final CompletableFuture<MutableRoaringBitmap> result = new CompletableFuture<>();
+    // Pages requested whose ids have not been added to patientIds yet
+    private final AtomicInteger pagesInFlight = new AtomicInteger();
+    // Requests of those pages, aborted if the search fails or is cancelled
+    private final Set<CompletableFuture<SearchPage>> pageRequests = ConcurrentHashMap.newKeySet();
+
+    private AsyncFhirSearchRequest(URI searchUri, BundlePageParser bundleParser, FhirHttpClient client,
+                                   PatientIdDictionary dictionary, String patientIdNamespace){
+        this.searchUri = searchUri;
+        this.resourceType = SearchRequests.getResourceType(searchUri);
+        this.dictionary = dictionary;
+        this.patientIdNamespace = patientIdNamespace;
+        this.client = client;
+        this.bundleParser = bundleParser;
+        this.result.whenComplete((ids, e) -> {
+            if (e != null) {
+                this.pageRequests.forEach(pageRequest -> pageRequest.cancel(true));
+            }
+        });
+    }
+
+    /**
+     * Starts the given search, the first page is requested via POST
+     *
+     * @param fhirRequestUrl complete search url
+     * @param pagecount number of resources per page, empty String to use the server default
+     * @param bundleParser parser used to extract patient ids and next page links from the responses, has to be
+     *                     thread safe
+     * @param client shared client used for every page request
+     * @param projectElements whether to ask the server to return only the patient reference of each resource
+     * @param dictionary dictionary the found patient ids are encoded with
+     * @param patientIdNamespace prefix of the found patient ids within the dictionary, empty for none
+     * @return future of the codes of all patient ids found, cancelling it stops requesting further pages
+     */
+    public static CompletableFuture<MutableRoaringBitmap> execute(URI fhirRequestUrl, String pagecount,
+                                                                  BundlePageParser bundleParser,
+                                                                  FhirHttpClient client, boolean projectElements,
+                                                                  PatientIdDictionary dictionary,
+                                                                  String patientIdNamespace){
+        AsyncFhirSearchRequest search = new AsyncFhirSearchRequest(fhirRequestUrl, bundleParser, client, dictionary,
+                patientIdNamespace);
+        String elementsProjection = SearchRequests.getElementsProjection(fhirRequestUrl, projectElements);
+        search.track(client.sendAsync(
+                SearchRequests.buildPostRequest(client, fhirRequestUrl, pagecount, elementsProjection),
+                body -> bundleParser.parse(body, search::onNextPageLink)));
+        return search.result;
+    }
+
+    /**
+     * Further pages are requested via GET, which may be hedged and retried
+     */
+    private void requestNextPage(URI nextPageUri) {
+        Consumer<URI> nextPageLinkListener = SearchRequests.forwardOnce(this::onNextPageLink);
+        track(this.client.sendPageAsync(SearchRequests.buildNextPageRequest(this.client, nextPageUri),
+                this.resourceType, body -> this.bundleParser.parse(body, nextPageLinkListener)));
+    }
+
+    private void track(CompletableFuture<SearchPage> pageRequest) {
+        this.pagesInFlight.incrementAndGet();
+        this.pageRequests.add(pageRequest);
+        pageRequest.whenComplete((page, e) -> {
+            this.pageRequests.remove(pageRequest);
+            onPageParsed(page, e);
+        });
+        // Cancelled while the request was being sent
+        if (this.result.isCompletedExceptionally()) {
+            pageRequest.cancel(true);
+        }
+    }
+
+    /**
+     * Called while a page is still being parsed, so the page itself is still counted as in flight
+     */
+    private void onNextPageLink(URI nextPageUri) {
+        if (this.result.isDone()) {
+            return;
+        }
+        requestNextPage(nextPageUri);
+    }
+
+    private void onPageParsed(SearchPage page, Throwable e) {
+        if (this.result.isDone()) {
+            return;
+        }
+        if (e != null) {
+            log.error("Error Connecting to FHIR Server while executing search " + this.searchUri);
+            this.result.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                    ? e.getCause() : e);
+            return;
+        }
+        MutableRoaringBitmap pageIds = this.dictionary.encodeAll(this.patientIdNamespace, page.getPatientIds());
+        synchronized (this.patientIds) {
+            this.patientIds.or(pageIds);
+        }
+        if (this.pagesInFlight.decrementAndGet() == 0) {
+            synchronized (this.patientIds) {
+                this.result.complete(this.patientIds);
+            }
+        }
+    }
+}
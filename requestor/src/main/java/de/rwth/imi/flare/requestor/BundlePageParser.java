@@ -0,0 +1,35 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.function.Consumer;
+
+/**
+ * Parses a FHIR search result Bundle into the patient ids it references and the link to its next page
+ */
+public interface BundlePageParser {
+
+    /**
+     * @param bundle JSON encoded searchset Bundle, consumed completely
+     * @return patient ids of all resources contained in the bundle and the next page link
+     * @throws IOException if the bundle can not be read or is malformed
+     */
+    SearchPage parse(InputStream bundle) throws IOException;
+
+    /**
+     * Parses the bundle, handing the next page link to the given listener as soon as it is known, so that the next
+     * page can be requested while the rest of this one is still being read
+     * @param bundle JSON encoded searchset Bundle, consumed completely
+     * @param nextPageLinkListener called at most once, with the link to the next page
+     * @return patient ids of all resources contained in the bundle and the next page link
+     * @throws IOException if the bundle can not be read or is malformed
+     */
+    default SearchPage parse(InputStream bundle, Consumer<URI> nextPageLinkListener) throws IOException {
+        SearchPage page = parse(bundle);
+        if (page.getNextPageUri() != null) {
+            nextPageLinkListener.accept(page.getNextPageUri());
+        }
+        return page;
+    }
+}
@@ -0,0 +1,15 @@
+package de.rwth.imi.flare.requestor;
+
+/**
+ * Selects the {@link BundlePageParser} used to process FHIR search responses
+ */
+public enum BundleParserType {
+    /**
+     * {@link StreamingBundlePageParser}, reads only the patient references without building a resource model
+     */
+    STREAMING,
+    /**
+     * {@link HapiBundlePageParser}, parses the complete bundle using HAPI FHIR
+     */
+    HAPI
+}
@@ -1,6 +1,57 @@
 package de.rwth.imi.flare.requestor;
 
 public interface CacheConfig {
+
+    /**
+     *
+     * @return heap budget of the criterion cache, which also covers this requestor's part of the
+     * {@link PatientIdDictionary} its entries are encoded with. Entries are evicted to the extent the dictionary grows
+     */
     int getCacheSizeInMb();
     int getEntryRefreshTimeHours();
+
+    /**
+     *
+     * @return directory of the disk-backed second cache tier, which receives evicted entries and is checked before the
+     * FHIR server on a miss. Empty or null to disable it
+     */
+    default String getDiskCachePath() {
+        return null;
+    }
+
+    /**
+     *
+     * @return maximum size of the disk-backed cache tier, at most 2047
+     */
+    default int getDiskCacheSizeInMb() {
+        return 2047;
+    }
+
+    /**
+     *
+     * @return whether stale entries are refreshed by searching only for resources updated since they were fetched,
+     * see {@link #getFullRefreshIntervalHours()}. Disabled by default: delta refreshes are cheaper, but patients whose
+     * resources were deleted or no longer match remain in an entry until its next full refresh
+     */
+    default boolean isDeltaRefreshEnabled() {
+        return false;
+    }
+
+    /**
+     *
+     * @return interval after which an entry is refreshed by a full search even if delta refreshes are enabled,
+     * as only full searches notice deleted resources
+     */
+    default int getFullRefreshIntervalHours() {
+        return 168;
+    }
+
+    /**
+     *
+     * @return maximum size of the cache holding the unions of all criteria of a group, e.g. all leaves of an expanded
+     * concept, in addition to {@link #getCacheSizeInMb()}. 0 to disable it
+     */
+    default int getUnionCacheSizeInMb() {
+        return 128;
+    }
 }
@@ -0,0 +1,36 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Snapshot of the state of the criterion cache of a {@link FhirRequestor}.<br>
+ * Sizes are the bytes of heap actually held by the cached entries, as computed by {@link CompactIdSets}.
+ */
+@Getter
+@AllArgsConstructor
+public class CacheMetrics {
+    private final long entryCount;
+    private final long weightedSizeBytes;
+    // Cache budget less this requestor's part of the dictionary
+    private final long maximumSizeBytes;
+    private final long averageEntryBytes;
+    private final long largestEntryBytes;
+    private final long hitCount;
+    private final long missCount;
+    private final double hitRate;
+    private final long evictionCount;
+    private final long loadFailureCount;
+    private final double averageLoadMillis;
+    // Patient ids are held once by the dictionary, shared by all requestors using it
+    private final long dictionaryIdCount;
+    private final long dictionarySizeBytes;
+    // Disk tier, 0 if disabled
+    private final long diskEntryCount;
+    private final long diskFileBytes;
+    // Unions of the criteria of a group, derived from the entries above
+    private final long unionEntryCount;
+    private final long unionWeightedSizeBytes;
+    private final long unionHitCount;
+    private final long unionMissCount;
+}
@@ -0,0 +1,22 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+
+/**
+ * Value of the criterion cache: the encoded patient ids found by a search and the time they were fetched, which
+ * decides when the entry is refreshed. Entries loaded from the {@link DiskCacheStore} keep their original fetch time.<br>
+ * Incremental refreshes only add the patients of resources updated since the entry was fetched, so the time of the
+ * latest full search is kept as well, to schedule the full refresh that drops deleted resources.
+ */
+@Getter
+@AllArgsConstructor
+public class CachedIdSet {
+    // Object header, reference and two longs
+    static final int OVERHEAD_BYTES = 32;
+
+    private final ImmutableRoaringBitmap patientIds;
+    private final long fetchedAtMillis;
+    private final long lastFullFetchMillis;
+}
@@ -0,0 +1,59 @@
+package de.rwth.imi.flare.requestor;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Restricts a search to a set of candidate patients, for evaluating a criterion against the few patients still in
+ * question instead of the whole population (semi-join).<br>
+ * Patient searches are restricted by _id, searches for other resources by the parameter referencing their patient,
+ * e.g. Observation?code=x&amp;patient=Patient/a,Patient/b. The candidates are split into as many searches as needed to
+ * keep the body of each POST search below the given length.
+ */
+public final class CandidateRestriction {
+    // Left for the _count and _elements parameters added to the body of the search
+    private static final int RESERVED_BODY_LENGTH = 100;
+
+    private CandidateRestriction(){
+    }
+
+    /**
+     * @param searchUrl search url, after rewriting it by {@link ReverseChaining} if applicable
+     * @param patientIds ids of the candidate patients on the FHIR server, at least one
+     * @param maxBodyLength maximum length of the body of a POST search accepted by the FHIR server
+     * @return searches finding the resources of all candidates matching the given search, empty if the searched
+     * resources are not known to reference a patient
+     */
+    public static Optional<List<String>> restrict(String searchUrl, Collection<String> patientIds, int maxBodyLength){
+        String resourceType = SearchRequests.getResourceType(URI.create(searchUrl));
+        boolean patientSearch = "Patient".equals(resourceType);
+        Optional<String> patientParameter = patientSearch ? Optional.of("_id")
+                : PatientSearchParameters.of(resourceType);
+        if (patientParameter.isEmpty()){
+            return Optional.empty();
+        }
+        int queryStart = searchUrl.indexOf('?');
+        String prefix = searchUrl + (queryStart < 0 ? "?" : "&") + patientParameter.get() + "=";
+        // Only the query of the search is sent in the body
+        int fixedLength = prefix.length() - (queryStart + 1) + RESERVED_BODY_LENGTH;
+
+        List<String> searches = new ArrayList<>();
+        StringBuilder values = new StringBuilder();
+        for (String patientId : patientIds){
+            String value = patientSearch ? patientId : "Patient/" + patientId;
+            if (values.length() > 0 && fixedLength + values.length() + 1 + value.length() > maxBodyLength){
+                searches.add(prefix + values);
+                values.setLength(0);
+            }
+            if (values.length() > 0){
+                values.append(',');
+            }
+            values.append(value);
+        }
+        searches.add(prefix + values);
+        return Optional.of(searches);
+    }
+}
@@ -0,0 +1,58 @@
+package de.rwth.imi.flare.requestor;
+
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact immutable storage format of the cached patient id sets: a dictionary encoded bitmap serialized into a
+ * single byte array of exactly the required size, which is read in place.<br>
+ * Unlike a mutable bitmap or a set of Strings, the heap held by such a set consists of the array and a fixed number of
+ * small objects, so its weight can be computed exactly instead of being estimated.
+ */
+public final class CompactIdSets {
+    // Objects wrapping the array, sizes on a 64 bit JVM with compressed oops:
+    // ImmutableRoaringBitmap 16, ImmutableRoaringArray 24, two HeapByteBuffers (the given one and its slice) 2 * 56
+    private static final int BITMAP_OVERHEAD_BYTES = 16 + 24 + 2 * 56;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    // String object with compact (latin1) encoding
+    private static final int STRING_HEADER_BYTES = 24;
+
+    private CompactIdSets(){
+    }
+
+    /**
+     * @param bitmap bitmap to be stored, is run-length optimized in place if mutable, otherwise a mutable copy is
+     * @return immutable copy, backed by an array of exactly the serialized size
+     */
+    public static ImmutableRoaringBitmap freeze(ImmutableRoaringBitmap bitmap){
+        MutableRoaringBitmap mutable = bitmap instanceof MutableRoaringBitmap mutableBitmap
+                ? mutableBitmap : bitmap.toMutableRoaringBitmap();
+        mutable.runOptimize();
+        ByteBuffer buffer = ByteBuffer.allocate(mutable.serializedSizeInBytes());
+        mutable.serialize(buffer);
+        buffer.flip();
+        return new ImmutableRoaringBitmap(buffer);
+    }
+
+    /**
+     * @param frozen set created by {@link #freeze(ImmutableRoaringBitmap)}
+     * @return bytes of heap held by the given set
+     */
+    public static long retainedBytes(ImmutableRoaringBitmap frozen){
+        return BITMAP_OVERHEAD_BYTES + alignedArrayBytes(frozen.serializedSizeInBytes());
+    }
+
+    /**
+     * @param s String consisting of latin1 characters only, like search urls and FHIR ids
+     * @return bytes of heap held by the given String
+     */
+    public static long retainedBytes(String s){
+        return STRING_HEADER_BYTES + alignedArrayBytes(s.length());
+    }
+
+    private static long alignedArrayBytes(int length){
+        return (ARRAY_HEADER_BYTES + length + 7L) & ~7L;
+    }
+}
@@ -0,0 +1,25 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Snapshot of the requests in flight toward one FHIR server and of the limit imposed on them.
+ */
+@Getter
+@AllArgsConstructor
+public class ConcurrencyMetrics {
+    private final String baseUri;
+    private final boolean adaptive;
+    private final int limit;
+    private final int maxLimit;
+    private final int inFlight;
+    private final int queueLength;
+    private final double averageWaitMillis;
+    // Long-term average of the latency of a single request, 0 if the limit is not adaptive
+    private final double averageLatencyMillis;
+    private final long overloadCount;
+    // Duplicate and repeated requests for further pages, see PageRequestPolicy
+    private final long hedgedRequestCount;
+    private final long retriedRequestCount;
+}
@@ -0,0 +1,19 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Search result as stored by {@link DiskCacheStore}
+ */
+@Getter
+@AllArgsConstructor
+public class DiskCacheEntry {
+    // time the ids were last brought up to date with the FHIR server
+    private final long fetchedAtMillis;
+    // time of the latest full search, incremental refreshes only add ids
+    private final long lastFullFetchMillis;
+    private final List<String> patientIds;
+}
@@ -0,0 +1,379 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Second tier of the criterion cache: an append-only file of search results keyed by search url, read through a
+ * memory mapping.<br>
+ * Every record holds the patient ids of one search, sorted and front coded, together with the time they were fetched
+ * and the time of the latest full (non incremental) search.
+ * A later record for the same key supersedes earlier ones. Superseded records are dropped by compaction, which
+ * happens when the store is opened and whenever the file grows beyond its maximum size; when compaction alone does
+ * not suffice, the least recently fetched entries are dropped as well.<br>
+ * Ids are stored as Strings, as dictionary codes are only valid within one process. All methods are thread safe.
+ */
+@Slf4j
+public class DiskCacheStore implements Closeable {
+    private static final int MAGIC = 0x464C5243; // "FLRC"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final String DATA_FILE = "criteria.dat";
+    // A single mapping can cover at most 2 GB
+    private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    private final Path dataFile;
+    private final long maxFileBytes;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    // Offset of the latest record per key
+    private final Map<String, IndexEntry> index = new HashMap<>();
+    private long liveBytes = 0;
+
+    /**
+     * Opens the store in the given directory, creating it if necessary
+     * @param directory directory holding the data file
+     * @param maxFileBytes size the data file is kept below
+     */
+    public DiskCacheStore(Path directory, long maxFileBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.dataFile = directory.resolve(DATA_FILE);
+        this.maxFileBytes = Math.min(maxFileBytes, MAX_FILE_BYTES);
+        this.channel = openChannel(this.dataFile);
+        load();
+        if (this.channel.size() > HEADER_BYTES + this.liveBytes) {
+            compact(this.maxFileBytes);
+        }
+    }
+
+    /**
+     * @param key normalized search url
+     * @return stored entry for the given key, if there is one
+     */
+    public synchronized Optional<DiskCacheEntry> get(String key) {
+        IndexEntry entry = this.index.get(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        try {
+            ByteBuffer record = readRecord(entry.offset);
+            skipKey(record);
+            long fetchedAtMillis = record.getLong();
+            long lastFullFetchMillis = record.getLong();
+            return Optional.of(new DiskCacheEntry(fetchedAtMillis, lastFullFetchMillis, readIds(record)));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not read disk cache entry for " + key, e);
+            this.index.remove(key);
+            this.liveBytes -= entry.length;
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @param key normalized search url
+     * @return time the stored entry for the given key was fetched, if there is one
+     */
+    public synchronized OptionalLong getFetchedAtMillis(String key) {
+        IndexEntry entry = this.index.get(key);
+        return entry == null ? OptionalLong.empty() : OptionalLong.of(entry.fetchedAtMillis);
+    }
+
+    /**
+     * Appends the given entry, which has been fetched by a full search, superseding any entry stored for the same key
+     * @param key normalized search url
+     * @param fetchedAtMillis time the ids were fetched from the FHIR server
+     * @param patientIds ids found by the search
+     */
+    public void put(String key, long fetchedAtMillis, Collection<String> patientIds) throws IOException {
+        put(key, fetchedAtMillis, fetchedAtMillis, patientIds);
+    }
+
+    /**
+     * Appends the given entry, superseding any entry stored for the same key
+     * @param key normalized search url
+     * @param fetchedAtMillis time the ids were last brought up to date with the FHIR server
+     * @param lastFullFetchMillis time of the latest full search, older than fetchedAtMillis for incrementally
+     *                            refreshed entries
+     * @param patientIds ids found by the search
+     */
+    public synchronized void put(String key, long fetchedAtMillis, long lastFullFetchMillis,
+                                 Collection<String> patientIds) throws IOException {
+        ByteBuffer record = encodeRecord(key, fetchedAtMillis, lastFullFetchMillis, patientIds);
+        if (record.remaining() > this.maxFileBytes / 2) {
+            log.debug("Not storing " + key + " on disk, " + record.remaining() + " bytes exceed the store size");
+            return;
+        }
+        if (this.channel.size() + record.remaining() > this.maxFileBytes) {
+            compact(this.maxFileBytes - record.remaining());
+        }
+        long offset = this.channel.size();
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            this.channel.write(record, offset + record.position());
+        }
+        IndexEntry previous = this.index.put(key, new IndexEntry(offset, length, fetchedAtMillis));
+        if (previous != null) {
+            this.liveBytes -= previous.length;
+        }
+        this.liveBytes += length;
+    }
+
+    /**
+     * @return number of entries stored
+     */
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return bytes occupied by the data file
+     */
+    public synchronized long getFileBytes() throws IOException {
+        return this.channel.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.mapped = null;
+        this.channel.force(true);
+        this.channel.close();
+    }
+
+    private static FileChannel openChannel(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Builds the index by scanning all records. Everything from the first incomplete or unreadable record on, e.g. left
+     * by a crash while appending, is cut off.
+     */
+    private void load() throws IOException {
+        long size = this.channel.size();
+        if (size < HEADER_BYTES || !hasValidHeader()) {
+            if (size > 0) {
+                log.warn("Disk cache " + this.dataFile + " has an unknown format, starting empty");
+            }
+            this.channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+            this.channel.write(header, 0);
+            return;
+        }
+        long offset = HEADER_BYTES;
+        while (offset + Integer.BYTES <= size) {
+            int length;
+            String key;
+            long fetchedAtMillis;
+            try {
+                ByteBuffer record = readRecord(offset);
+                length = Integer.BYTES + record.remaining();
+                key = readKey(record);
+                fetchedAtMillis = record.getLong();
+                // time of the last full fetch
+                record.getLong();
+            } catch (IOException | RuntimeException e) {
+                // e.g. a zero filled tail after a crash
+                break;
+            }
+            IndexEntry previous = this.index.put(key, new IndexEntry(offset, length, fetchedAtMillis));
+            if (previous != null) {
+                this.liveBytes -= previous.length;
+            }
+            this.liveBytes += length;
+            offset += length;
+        }
+        if (offset < size) {
+            log.warn("Cutting off incomplete record at the end of disk cache " + this.dataFile);
+            this.channel.truncate(offset);
+            this.mapped = null;
+        }
+        log.debug("Opened disk cache " + this.dataFile + " with " + this.index.size() + " entries");
+    }
+
+    private boolean hasValidHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        this.channel.read(header, 0);
+        header.flip();
+        return header.getInt() == MAGIC && header.getInt() == VERSION;
+    }
+
+    /**
+     * Rewrites the data file with the latest record of every key only, dropping the least recently fetched entries
+     * until the file fits into the given size
+     */
+    private void compact(long targetBytes) throws IOException {
+        List<Map.Entry<String, IndexEntry>> entries = new ArrayList<>(this.index.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> -entry.getValue().fetchedAtMillis));
+
+        Path tempFile = this.dataFile.resolveSibling(DATA_FILE + ".compacting");
+        Map<String, IndexEntry> compactedIndex = new HashMap<>();
+        long compactedBytes = HEADER_BYTES;
+        try (FileChannel target = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            target.write(ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip(), 0);
+            for (Map.Entry<String, IndexEntry> entry : entries) {
+                IndexEntry indexEntry = entry.getValue();
+                if (compactedBytes + indexEntry.length > targetBytes) {
+                    continue;
+                }
+                ByteBuffer record = ByteBuffer.allocate(indexEntry.length);
+                this.channel.read(record, indexEntry.offset);
+                record.flip();
+                while (record.hasRemaining()) {
+                    target.write(record, compactedBytes + record.position());
+                }
+                compactedIndex.put(entry.getKey(),
+                        new IndexEntry(compactedBytes, indexEntry.length, indexEntry.fetchedAtMillis));
+                compactedBytes += indexEntry.length;
+            }
+            target.force(true);
+        }
+
+        this.mapped = null;
+        this.channel.close();
+        Files.move(tempFile, this.dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = openChannel(this.dataFile);
+        log.debug("Compacted disk cache " + this.dataFile + " from " + this.index.size() + " to "
+                + compactedIndex.size() + " entries");
+        this.index.clear();
+        this.index.putAll(compactedIndex);
+        this.liveBytes = compactedBytes - HEADER_BYTES;
+    }
+
+    /**
+     * @return view of the record at the given offset, positioned after its length
+     */
+    private ByteBuffer readRecord(long offset) throws IOException {
+        MappedByteBuffer mapping = ensureMapped(offset + Integer.BYTES);
+        int length = mapping.getInt((int) offset);
+        if (length < 0 || offset + Integer.BYTES + length > this.channel.size()) {
+            throw new IOException("Incomplete record at offset " + offset);
+        }
+        mapping = ensureMapped(offset + Integer.BYTES + length);
+        return mapping.duplicate().position((int) offset + Integer.BYTES).limit((int) offset + Integer.BYTES + length)
+                .slice();
+    }
+
+    /**
+     * Maps the file again if it has grown beyond the current mapping
+     */
+    private MappedByteBuffer ensureMapped(long end) throws IOException {
+        if (this.mapped == null || this.mapped.capacity() < end) {
+            this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+        }
+        if (this.mapped.capacity() < end) {
+            throw new IOException("Read beyond the end of " + this.dataFile);
+        }
+        return this.mapped;
+    }
+
+    private static ByteBuffer encodeRecord(String key, long fetchedAtMillis, long lastFullFetchMillis,
+                                           Collection<String> patientIds) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[][] ids = patientIds.stream().sorted().map(id -> id.getBytes(StandardCharsets.UTF_8))
+                .toArray(byte[][]::new);
+
+        int idBytes = 0;
+        for (byte[] id : ids) {
+            idBytes += 2 * 5 + id.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES + keyBytes.length + 2 * Long.BYTES
+                + Integer.BYTES + idBytes);
+        record.position(Integer.BYTES);
+        record.putInt(keyBytes.length).put(keyBytes);
+        record.putLong(fetchedAtMillis);
+        record.putLong(lastFullFetchMillis);
+        record.putInt(ids.length);
+        byte[] previous = new byte[0];
+        for (byte[] id : ids) {
+            int shared = sharedPrefixLength(previous, id);
+            putVarInt(record, shared);
+            putVarInt(record, id.length - shared);
+            record.put(id, shared, id.length - shared);
+            previous = id;
+        }
+        record.putInt(0, record.position() - Integer.BYTES);
+        return record.flip();
+    }
+
+    private static List<String> readIds(ByteBuffer record) {
+        int count = record.getInt();
+        List<String> ids = new ArrayList<>(count);
+        byte[] previous = new byte[0];
+        for (int i = 0; i < count; i++) {
+            int shared = getVarInt(record);
+            int suffixLength = getVarInt(record);
+            byte[] id = Arrays.copyOf(previous, shared + suffixLength);
+            record.get(id, shared, suffixLength);
+            ids.add(new String(id, StandardCharsets.UTF_8));
+            previous = id;
+        }
+        return ids;
+    }
+
+    private static String readKey(ByteBuffer record) throws IOException {
+        int keyLength = record.getInt();
+        if (keyLength < 0 || keyLength > record.remaining()) {
+            throw new IOException("Key of " + keyLength + " bytes exceeds its record");
+        }
+        byte[] key = new byte[keyLength];
+        record.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static void skipKey(ByteBuffer record) {
+        int keyLength = record.getInt();
+        record.position(record.position() + keyLength);
+    }
+
+    private static int sharedPrefixLength(byte[] a, byte[] b) {
+        int max = Math.min(a.length, b.length);
+        int shared = 0;
+        while (shared < max && a[shared] == b[shared]) {
+            shared++;
+        }
+        return shared;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static class IndexEntry {
+        private final long offset;
+        private final int length;
+        private final long fetchedAtMillis;
+
+        private IndexEntry(long offset, int length, long fetchedAtMillis) {
+            this.offset = offset;
+            this.length = length;
+            this.fetchedAtMillis = fetchedAtMillis;
+        }
+    }
+}
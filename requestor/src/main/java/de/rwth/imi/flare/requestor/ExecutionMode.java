@@ -0,0 +1,17 @@
+package de.rwth.imi.flare.requestor;
+
+/**
+ * Kind of threads FHIR searches and the recombination of their results are executed on
+ */
+public enum ExecutionMode {
+    /**
+     * Pool of at most {@link FlareThreadPoolConfig#getMaxPoolSize()} platform threads
+     */
+    PLATFORM,
+    /**
+     * One virtual thread per task, so every search can run its blocking paging loop at once.
+     * Concurrency toward the FHIR server is still capped by {@link FlareHttpClientConfig#getMaxConnections()}.
+     * Falls back to {@link #PLATFORM} on JVMs without virtual threads.
+     */
+    VIRTUAL
+}
@@ -0,0 +1,319 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Authenticator;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Long-lived HTTP client shared by all FHIR searches of a {@link FhirRequestor}.<br>
+ * Reusing one client keeps connections to the FHIR server alive between searches, so only the first request pays
+ * for the TCP/TLS handshake. The number of concurrently open exchanges is bounded by
+ * {@link FlareHttpClientConfig#getMaxConnections()}, for both blocking and asynchronous requests, and adapted to the
+ * server below that bound if {@link FlareHttpClientConfig#isAdaptiveConcurrencyEnabled()}. Requests for further pages
+ * of a search may be hedged and retried according to a {@link PageRequestPolicy}.<br>
+ * Asynchronous requests hold no thread while waiting for a connection or for the response headers. The body of each
+ * response is then read from a blocking stream on one of at most maxConnections reader threads, which stays parked
+ * for as long as the server takes to stream the body.
+ */
+@Slf4j
+public class FhirHttpClient implements AutoCloseable {
+    private final HttpClient client;
+    private final InFlightRequestLimiter connectionPermits;
+    // null if the limit is fixed
+    private final AdaptiveConcurrencyLimit adaptiveLimit;
+    private final Duration requestTimeout;
+    private final PageRequestPolicy pageRequestPolicy;
+    // Reads the bodies of asynchronous responses, which blocks until the body has been received completely. Only
+    // requests holding a connection permit read a body, so there is never more work than threads
+    private final ThreadPoolExecutor bodyReaderExecutor;
+
+    /**
+     * @param clientConfig timeouts, connection limit and protocol version to be used
+     * @param auth Authenticator used for all requests, if present
+     */
+    public FhirHttpClient(FlareHttpClientConfig clientConfig, Optional<Authenticator> auth){
+        this(clientConfig, auth, PageRequestPolicy.disabled());
+    }
+
+    /**
+     * @param clientConfig timeouts, connection limit and protocol version to be used
+     * @param auth Authenticator used for all requests, if present
+     * @param pageRequestPolicy hedging and retries of requests for further pages of a search
+     */
+    public FhirHttpClient(FlareHttpClientConfig clientConfig, Optional<Authenticator> auth,
+                          PageRequestPolicy pageRequestPolicy){
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(clientConfig.isHttp2Enabled() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(clientConfig.getConnectTimeoutSeconds()))
+                .followRedirects(HttpClient.Redirect.NORMAL);
+        auth.ifPresent(builder::authenticator);
+        this.client = builder.build();
+        this.connectionPermits = new InFlightRequestLimiter(clientConfig.getMaxConnections());
+        this.adaptiveLimit = clientConfig.isAdaptiveConcurrencyEnabled()
+                ? new AdaptiveConcurrencyLimit(this.connectionPermits,
+                        Math.min(clientConfig.getMinConnections(), clientConfig.getMaxConnections()),
+                        clientConfig.getMaxConnections())
+                : null;
+        this.requestTimeout = Duration.ofSeconds(clientConfig.getRequestTimeoutSeconds());
+        this.pageRequestPolicy = pageRequestPolicy;
+        this.bodyReaderExecutor = new ThreadPoolExecutor(clientConfig.getMaxConnections(),
+                clientConfig.getMaxConnections(), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "flare-fhir-body-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.bodyReaderExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates a request builder for the given uri with the configured request timeout already applied
+     * @param uri target of the request
+     * @return request builder, to be completed by the caller
+     */
+    public HttpRequest.Builder newRequestBuilder(URI uri){
+        return HttpRequest.newBuilder(uri).timeout(this.requestTimeout);
+    }
+
+    /**
+     * Sends the given request and hands the response body to the given reader, blocking while the maximum number of
+     * connections is in use. The connection counts as used until the reader returns.
+     *
+     * @param req request to be executed
+     * @param bodyReader consumes the body of a successful response
+     * @throws IOException Thrown when a non 2xx http code is received or the body can not be read
+     * @throws InterruptedException Thrown when interrupted while waiting for a connection or the response
+     */
+    public <T> T send(HttpRequest req, BodyReader<T> bodyReader) throws IOException, InterruptedException {
+        acquirePermit();
+        long startNanos = System.nanoTime();
+        HttpResponse<InputStream> response = null;
+        try {
+            response = this.client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            return readBody(response, bodyReader);
+        } catch (HttpTimeoutException e) {
+            recordTimeout();
+            throw e;
+        } finally {
+            if (response != null) {
+                recordResponse(startNanos, response.statusCode());
+            }
+            this.connectionPermits.release();
+        }
+    }
+
+    /**
+     * Sends the given request without blocking the calling thread, also while waiting for a free connection.
+     * The body of the response is handed to the given reader on one of the reader threads of this client, which is
+     * blocked until the body has been read. The connection counts as used until the reader returns.
+     *
+     * @param req request to be executed
+     * @param bodyReader consumes the body of a successful response
+     * @return future of the value read from the response, failing with an IOException when a non 2xx http code is
+     * received or the body can not be read. Cancelling it aborts the exchange, or gives up waiting for a connection
+     */
+    public <T> CompletableFuture<T> sendAsync(HttpRequest req, BodyReader<T> bodyReader) {
+        CompletableFuture<Void> permit = this.connectionPermits.acquire();
+        // Set once the request has been sent, to abort it on cancellation
+        AtomicReference<CompletableFuture<HttpResponse<InputStream>>> exchange = new AtomicReference<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        // Set by whoever returns a granted permit, the exchange once started or the cancellation if it came first
+        AtomicBoolean permitClaimed = new AtomicBoolean();
+        CompletableFuture<T> result = permit.thenCompose(unused -> {
+            if (!permitClaimed.compareAndSet(false, true)) {
+                // cancelled concurrently, the permit has been returned already
+                throw new CancellationException();
+            }
+            long startNanos = System.nanoTime();
+            CompletableFuture<HttpResponse<InputStream>> response;
+            try {
+                response = this.client.sendAsync(req, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (RuntimeException e) {
+                this.connectionPermits.release();
+                throw e;
+            }
+            exchange.set(response);
+            if (cancelled.get()) {
+                abort(response);
+            }
+            return response
+                    .thenApplyAsync(r -> {
+                        try {
+                            return readBody(r, bodyReader);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, this.bodyReaderExecutor)
+                    .whenComplete((value, e) -> {
+                        if (response.isDone() && !response.isCompletedExceptionally()) {
+                            recordResponse(startNanos, response.join().statusCode());
+                        } else if (isTimeout(e)) {
+                            recordTimeout();
+                        }
+                        this.connectionPermits.release();
+                    });
+        });
+        result.whenComplete((value, e) -> {
+            if (!result.isCancelled()) {
+                return;
+            }
+            cancelled.set(true);
+            // A waiting request never gets a permit. A granted permit is released once the exchange has failed, unless
+            // it was granted while the request got cancelled, in which case the exchange is never started
+            if (!permit.cancel(false) && permitClaimed.compareAndSet(false, true)) {
+                this.connectionPermits.release();
+            }
+            CompletableFuture<HttpResponse<InputStream>> response = exchange.get();
+            if (response != null) {
+                abort(response);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Cancels the exchange, or stops reading the body if the response has arrived already
+     */
+    private static void abort(CompletableFuture<HttpResponse<InputStream>> response) {
+        if (response.cancel(true) || response.isCompletedExceptionally()) {
+            return;
+        }
+        try {
+            response.join().body().close();
+        } catch (IOException e) {
+            log.debug("Could not close the body of a cancelled response", e);
+        }
+    }
+
+    /**
+     * Sends a GET request for a further page of a search like {@link #sendAsync}, hedging and retrying it according to
+     * the {@link PageRequestPolicy} of this client. The body reader may thus be called for several responses to the
+     * same request, of which only one is used.
+     *
+     * @param req idempotent GET request to be executed
+     * @param resourceType type of the resources searched for
+     * @param bodyReader consumes the body of a successful response
+     * @return future of the value read from the first successful response
+     */
+    public <T> CompletableFuture<T> sendPageAsync(HttpRequest req, String resourceType, BodyReader<T> bodyReader) {
+        return this.pageRequestPolicy.execute(resourceType, () -> sendAsync(req, bodyReader));
+    }
+
+    /**
+     * Blocking variant of {@link #sendPageAsync}
+     *
+     * @throws IOException Thrown when the last attempt received a non 2xx http code or the body could not be read
+     * @throws InterruptedException Thrown when interrupted while waiting for the response
+     */
+    public <T> T sendPage(HttpRequest req, String resourceType, BodyReader<T> bodyReader)
+            throws IOException, InterruptedException {
+        try {
+            return sendPageAsync(req, resourceType, bodyReader).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops the reader threads once the bodies being read have been read, asynchronous requests fail afterwards
+     */
+    @Override
+    public void close() {
+        this.bodyReaderExecutor.shutdown();
+    }
+
+    private void acquirePermit() throws InterruptedException {
+        CompletableFuture<Void> permit = this.connectionPermits.acquire();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            // the permit may have been granted concurrently, in which case it has to be returned
+            if (!permit.cancel(false)) {
+                this.connectionPermits.release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Waiting for a connection permit failed", e);
+        }
+    }
+
+    /**
+     * @param baseUri base url of the FHIR server this client is used for
+     * @return current limit and usage of the connections
+     */
+    public ConcurrencyMetrics getConcurrencyMetrics(String baseUri) {
+        boolean adaptive = this.adaptiveLimit != null;
+        return new ConcurrencyMetrics(baseUri, adaptive, this.connectionPermits.getLimit(),
+                adaptive ? this.adaptiveLimit.getMaxLimit() : this.connectionPermits.getLimit(),
+                this.connectionPermits.getInFlight(), this.connectionPermits.getQueueLength(),
+                this.connectionPermits.getAverageWaitMillis(),
+                adaptive ? this.adaptiveLimit.getAverageLatencyMillis() : 0,
+                adaptive ? this.adaptiveLimit.getOverloadCount() : 0,
+                this.pageRequestPolicy.getHedgeCount(), this.pageRequestPolicy.getRetryCount());
+    }
+
+    private void recordResponse(long startNanos, int statusCode) {
+        if (this.adaptiveLimit != null) {
+            boolean overloaded = statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+            this.adaptiveLimit.onResponse(System.nanoTime() - startNanos, overloaded);
+        }
+    }
+
+    private void recordTimeout() {
+        if (this.adaptiveLimit != null) {
+            this.adaptiveLimit.onTimeout();
+        }
+    }
+
+    private static boolean isTimeout(Throwable e) {
+        while (e != null) {
+            if (e instanceof HttpTimeoutException) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    private static <T> T readBody(HttpResponse<InputStream> response, BodyReader<T> bodyReader) throws IOException {
+        try (InputStream body = response.body()) {
+            if (response.statusCode() / 100 != 2) {
+                throw new HttpStatusException(response.statusCode());
+            }
+            return bodyReader.read(body);
+        }
+    }
+
+    /**
+     * Consumes the body of a successful response
+     */
+    @FunctionalInterface
+    public interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+}
@@ -1,38 +1,86 @@
 package de.rwth.imi.flare.requestor;
 
 import ca.uhn.fhir.context.FhirContext;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.Weigher;
-import de.rwth.imi.flare.api.FlareResource;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import de.rwth.imi.flare.api.model.Criterion;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.atomic.LongAccumulator;
 import lombok.extern.slf4j.Slf4j;
 import org.checkerframework.checker.index.qual.NonNegative;
 import org.jetbrains.annotations.NotNull;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
 
 /**
  * Requestor implementation, takes a single criterion, builds a FHIR Query from
  * it, and executes it
  */
 @Slf4j
-public class FhirRequestor implements de.rwth.imi.flare.api.Requestor {
+public class FhirRequestor implements de.rwth.imi.flare.api.Requestor, AutoCloseable {
 
-  private static final StringSetWeigher WEIGHER = new StringSetWeigher();
+  private static final BitmapWeigher WEIGHER = new BitmapWeigher();
   private static final long N_BYTES_IN_MB = 1024*1024;
+  private static final long DELTA_SAFETY_MARGIN_MILLIS = 60_000;
 
   private final FhirRequestorConfig config;
   private final FhirContext fhirR4Context = FhirContext.forR4();
-  private final AsyncLoadingCache<String, Set<String>> cache;
+  private final FhirHttpClient httpClient;
+  private final StreamingBundlePageParser streamingBundleParser = new StreamingBundlePageParser();
+  private final PatientIdDictionary dictionary;
+  private final AsyncLoadingCache<String, CachedIdSet> cache;
+  // Shared by the cache and this requestor's part of the dictionary
+  private final long cacheBudgetBytes;
+  // Unions of several criteria, keyed by their sorted cache keys, null if disabled
+  private final Cache<String, CachedIdSet> unionCache;
+  // Guards the following three fields and keeps them consistent with the union cache
+  private final Object unionLock = new Object();
+  // Keys of the unions built from each search, to invalidate them when it is refreshed
+  private final Map<String, Set<String>> unionKeysBySearchKey = new HashMap<>();
+  // Searches each union has been built from, which may merge several criteria
+  private final Map<String, Collection<String>> searchKeysByUnionKey = new HashMap<>();
+  // Counts refreshed searches, a union built meanwhile might contain outdated results
+  private long searchRefreshCount = 0;
+  private final long refreshAfterMillis;
+  private final boolean deltaRefreshEnabled;
+  private final long fullRefreshAfterMillis;
+  private final boolean searchBatchingEnabled;
+  private final ReverseChaining reverseChaining;
+  private final int maxBatchedUrlLength;
+  private final int maxPostBodyLength;
+  private final Executor executor;
+  // null if the disk tier is disabled
+  private final DiskCacheStore diskCache;
+  // Searches being loaded for the first time, by cache key, see SearchScope
+  private final Map<String, RunningSearch> runningSearches = new ConcurrentHashMap<>();
 
   /**
    * @param executor
@@ -40,15 +88,85 @@ public class FhirRequestor implements de.rwth.imi.flare.api.Requestor {
    */
   public FhirRequestor(FhirRequestorConfig requestorConfig,
       CacheConfig cacheConfig, Executor executor) {
+    this(requestorConfig, cacheConfig, executor, new PatientIdDictionary());
+  }
+
+  /**
+   * @param executor
+   * @param requestorConfig Configuration to be used when crafting requests
+   * @param dictionary encodes the patient ids of all search results, to be
+   *                   shared by everything combining results of this requestor
+   */
+  public FhirRequestor(FhirRequestorConfig requestorConfig,
+      CacheConfig cacheConfig, Executor executor, PatientIdDictionary dictionary) {
     this.config = requestorConfig;
+    this.dictionary = dictionary;
+    this.httpClient = new FhirHttpClient(requestorConfig.getHttpClientConfig(),
+        requestorConfig.getAuthentication(),
+        new PageRequestPolicy(requestorConfig.isPageHedgingEnabled(),
+            requestorConfig.getPageHedgeBudgetPercent(), requestorConfig.getMaxPageRetries()));
+    this.refreshAfterMillis = TimeUnit.HOURS.toMillis(cacheConfig.getEntryRefreshTimeHours());
+    this.deltaRefreshEnabled = cacheConfig.isDeltaRefreshEnabled();
+    this.fullRefreshAfterMillis = TimeUnit.HOURS.toMillis(cacheConfig.getFullRefreshIntervalHours());
+    this.searchBatchingEnabled = requestorConfig.isSearchBatchingEnabled();
+    this.maxBatchedUrlLength = requestorConfig.getMaxBatchedUrlLength();
+    this.maxPostBodyLength = requestorConfig.getMaxPostBodyLength();
+    this.executor = executor;
+    this.reverseChaining = new ReverseChaining(requestorConfig.getReverseChainingResourceTypes());
+    this.diskCache = openDiskCache(cacheConfig);
+    this.cacheBudgetBytes = cacheConfig.getCacheSizeInMb() * N_BYTES_IN_MB;
+    dictionary.addRequestor();
+    // Refreshing is triggered in executeAsBitmap based on the time an entry was
+    // fetched, as entries loaded from disk may already be old
     this.cache = Caffeine.newBuilder()
-        .maximumWeight(cacheConfig.getCacheSizeInMb() * N_BYTES_IN_MB)
+        .maximumWeight(cacheBudgetBytes)
         .weigher(WEIGHER)
-        .refreshAfterWrite(cacheConfig.getEntryRefreshTimeHours(), TimeUnit.HOURS)
         .executor(executor)
-        .evictionListener((String key, Set<String> idSet, RemovalCause cause) ->
-            log.debug("Key " + key + " was evicted, cause: " + cause))
-        .buildAsync(this::getSetCompletableFuture);
+        .recordStats()
+        .removalListener((String key, CachedIdSet idSet, RemovalCause cause) -> {
+          if (cause.wasEvicted()) {
+            log.debug("Key " + key + " was evicted, cause: " + cause);
+            storeOnDisk(key, idSet);
+          } else {
+            // Refreshed or removed explicitly, evicted entries are still valid
+            invalidateUnionsOf(key);
+          }
+        })
+        .buildAsync(new CriterionLoader());
+    this.unionCache = cacheConfig.getUnionCacheSizeInMb() <= 0 ? null : Caffeine.newBuilder()
+        .maximumWeight(cacheConfig.getUnionCacheSizeInMb() * N_BYTES_IN_MB)
+        .weigher(WEIGHER)
+        .executor(executor)
+        .recordStats()
+        .removalListener((String key, CachedIdSet idSet, RemovalCause cause) -> unregisterUnion(key))
+        .build();
+    fitCacheIntoBudget();
+  }
+
+  /**
+   * The dictionary never evicts any patient id, so the cache is shrunk by
+   * this requestor's part of it whenever new ids may have been encoded
+   */
+  private void fitCacheIntoBudget() {
+    long maximumBytes = Math.max(0, cacheBudgetBytes - dictionary.getRetainedBytesPerRequestor());
+    cache.synchronous().policy().eviction().ifPresent(eviction -> {
+      if (eviction.getMaximum() != maximumBytes) {
+        eviction.setMaximum(maximumBytes);
+      }
+    });
+  }
+
+  private static DiskCacheStore openDiskCache(CacheConfig cacheConfig) {
+    String path = cacheConfig.getDiskCachePath();
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+    try {
+      return new DiskCacheStore(Path.of(path), cacheConfig.getDiskCacheSizeInMb() * N_BYTES_IN_MB);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not open disk cache at " + path + ", continuing without it", e);
+      return null;
+    }
   }
 
 
@@ -61,32 +179,617 @@ public class FhirRequestor implements de.rwth.imi.flare.api.Requestor {
    */
   @Override
   public CompletableFuture<Set<String>> execute(Criterion searchCriterion) {
+    return executeAsBitmap(searchCriterion).thenApply(dictionary::decodeAll);
+  }
+
+  /**
+   * Like {@link #execute(Criterion)}, but returns the patient ids encoded by
+   * {@link #getDictionary()}. The bitmap is shared with the cache and must
+   * not be modified. The search is never cancelled.
+   *
+   * @param searchCriterion single criterion
+   * @return codes of the patient ids fulfilling the given criterion
+   */
+  public CompletableFuture<ImmutableRoaringBitmap> executeAsBitmap(Criterion searchCriterion) {
+    return executeAsBitmap(searchCriterion, null);
+  }
+
+  /**
+   * Like {@link #executeAsBitmap(Criterion)}, but the search is cancelled once
+   * the given scope and all other scopes waiting for it have been closed
+   *
+   * @param searchCriterion single criterion
+   * @param scope scope of the query the criterion belongs to
+   * @return codes of the patient ids fulfilling the given criterion
+   */
+  public CompletableFuture<ImmutableRoaringBitmap> executeAsBitmap(Criterion searchCriterion, SearchScope scope) {
     URI requestUrl;
     try {
       requestUrl = buildRequestUrl(searchCriterion);
     } catch (URISyntaxException | IncorrectQueryInputException e) {
       throw new RuntimeException(e);
     }
-    String urlString = requestUrl.toString();
-    return cache.get(urlString);
+    return getCachedIdSet(requestUrl.toString(), scope).thenApply(CachedIdSet::getPatientIds);
+  }
+
+  /**
+   * @return new scope for the searches of one query, to be closed once the
+   * query has finished or is given up
+   */
+  public SearchScope openScope() {
+    return new SearchScope();
+  }
+
+  /**
+   * Counts the patients fulfilling the given criterion. Unless the result is
+   * cached already, searches for patients, including those rewritten by
+   * {@link ReverseChaining}, are counted by the FHIR server with
+   * _summary=count, as every matching resource is a distinct patient.
+   * Searches for other resources are executed and their patients counted.
+   *
+   * @param searchCriterion single criterion
+   * @param scope scope of the query the criterion belongs to, null if the
+   *              count must not be cancelled
+   * @return number of patients fulfilling the given criterion
+   */
+  public CompletableFuture<Integer> countPatients(Criterion searchCriterion, SearchScope scope) {
+    String key = translateCriterion(searchCriterion);
+    String searchUrl = reverseChaining.rewrite(key).orElse(key);
+    if (cache.getIfPresent(key) != null || !isPatientSearch(searchUrl)) {
+      return getCachedIdSet(key, scope).thenApply(idSet -> idSet.getPatientIds().getCardinality());
+    }
+    log.debug("FHIR Search: " + searchUrl + " counting");
+    CompletableFuture<Integer> count = httpClient.sendAsync(
+        SearchRequests.buildCountRequest(httpClient, URI.create(searchUrl)), streamingBundleParser::readTotal);
+    if (scope != null) {
+      scope.attach(count);
+    }
+    return count.exceptionallyCompose(e -> {
+      if (isCancellation(e)) {
+        return CompletableFuture.failedFuture(e);
+      }
+      log.warn("Counting " + key + " failed, fetching all patients instead", e);
+      return getCachedIdSet(key, scope).thenApply(idSet -> idSet.getPatientIds().getCardinality());
+    });
+  }
+
+  /**
+   * Estimates the number of patients fulfilling the given criterion without
+   * fetching them, to plan the order in which criteria are evaluated. Cached
+   * results are counted exactly, other criteria are counted by the FHIR
+   * server with _summary=count. For searches of other resources than Patient,
+   * that is the number of matching resources, an upper bound of the number
+   * of patients.
+   *
+   * @param searchCriterion single criterion
+   * @param scope scope of the query the criterion belongs to, null if the
+   *              count must not be cancelled
+   * @return upper bound of the number of patients fulfilling the criterion,
+   * failing if the FHIR server can not count the search
+   */
+  public CompletableFuture<Integer> estimatePatientCount(Criterion searchCriterion, SearchScope scope) {
+    String key = translateCriterion(searchCriterion);
+    CompletableFuture<CachedIdSet> cached = cache.getIfPresent(key);
+    if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+      return CompletableFuture.completedFuture(cached.join().getPatientIds().getCardinality());
+    }
+    String searchUrl = reverseChaining.rewrite(key).orElse(key);
+    log.debug("FHIR Search: " + searchUrl + " estimating");
+    CompletableFuture<Integer> count = httpClient.sendAsync(
+        SearchRequests.buildCountRequest(httpClient, URI.create(searchUrl)), streamingBundleParser::readTotal);
+    if (scope != null) {
+      scope.attach(count);
+    }
+    return count;
+  }
+
+  private static boolean isPatientSearch(String key) {
+    return "Patient".equals(SearchRequests.getResourceType(URI.create(key)));
+  }
+
+  /**
+   * Returns the patients fulfilling any of the given criteria, e.g. all
+   * leaves of an expanded concept. Criteria not cached yet are merged into
+   * as few searches as possible, see {@link SearchBatches}. The union is
+   * cached as a whole, so repeating it costs one lookup instead of one per
+   * criterion. It is invalidated as soon as one of its searches is refreshed.
+   *
+   * @param searchCriteria criteria to be joined by OR
+   * @param scope scope of the query the criteria belong to, null if the
+   *              searches must not be cancelled
+   * @return codes of the patient ids fulfilling any of the given criteria,
+   * shared with the cache and must not be modified
+   */
+  public CompletableFuture<ImmutableRoaringBitmap> executeUnionAsBitmap(List<Criterion> searchCriteria,
+      SearchScope scope) {
+    SortedSet<String> criterionKeys = new TreeSet<>();
+    for (Criterion searchCriterion : searchCriteria) {
+      criterionKeys.add(translateCriterion(searchCriterion));
+    }
+    if (criterionKeys.size() == 1 || unionCache == null) {
+      return getUnionOfSearches(planSearches(criterionKeys), scope).thenApply(CachedIdSet::getPatientIds);
+    }
+    String unionKey = String.join("\n", criterionKeys);
+    CachedIdSet union = unionCache.getIfPresent(unionKey);
+    if (union != null && !isStale(union)) {
+      return CompletableFuture.completedFuture(union.getPatientIds());
+    }
+
+    long refreshCount;
+    synchronized (unionLock) {
+      refreshCount = searchRefreshCount;
+    }
+    List<String> searchKeys = planSearches(criterionKeys);
+    return getUnionOfSearches(searchKeys, scope).thenApply(built -> {
+      // Stale searches are being refreshed, which will invalidate the union anyway
+      if (!isStale(built)) {
+        cacheUnion(unionKey, searchKeys, built, refreshCount);
+      }
+      return built.getPatientIds();
+    });
+  }
+
+  /**
+   * Returns the candidates fulfilling any of the given criteria, without
+   * searching the whole population. Criteria that are cached are looked up,
+   * the others are searched restricted to the candidates, see
+   * {@link CandidateRestriction}. Restricted results only hold for the
+   * candidates, so they are not cached.
+   *
+   * @param searchCriteria criteria to be joined by OR
+   * @param candidates codes of the patients in question, possibly including
+   *                   patients of other requestors sharing the dictionary
+   * @param scope scope of the query the criteria belong to, null if the
+   *              searches must not be cancelled
+   * @return codes of patients fulfilling any of the given criteria, including
+   * all candidates that do. Criteria whose resources do not reference a
+   * patient are searched completely, the result must not be modified
+   */
+  public CompletableFuture<ImmutableRoaringBitmap> executeForCandidates(List<Criterion> searchCriteria,
+      ImmutableRoaringBitmap candidates, SearchScope scope) {
+    List<String> candidateIds = getCandidateIds(candidates);
+    if (candidateIds.isEmpty()) {
+      return CompletableFuture.completedFuture(new MutableRoaringBitmap());
+    }
+    SortedSet<String> criterionKeys = new TreeSet<>();
+    for (Criterion searchCriterion : searchCriteria) {
+      criterionKeys.add(translateCriterion(searchCriterion));
+    }
+    // Each search is folded into the union as soon as it arrives
+    IdSetAccumulator union = IdSetAccumulator.union();
+    for (String searchKey : planSearches(criterionKeys)) {
+      CompletableFuture<CachedIdSet> cached = cache.getIfPresent(searchKey);
+      if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+        union.add(CompletableFuture.completedFuture(cached.join().getPatientIds()));
+        continue;
+      }
+      Optional<String> patientSearchUrl = reverseChaining.rewrite(searchKey);
+      Optional<List<String>> restrictedUrls = CandidateRestriction.restrict(patientSearchUrl.orElse(searchKey),
+          candidateIds, maxPostBodyLength);
+      if (restrictedUrls.isEmpty()) {
+        union.add(getCachedIdSet(searchKey, scope).thenApply(CachedIdSet::getPatientIds));
+        continue;
+      }
+      log.debug("FHIR Search: " + searchKey + " restricted to " + candidateIds.size() + " candidates");
+      for (String restrictedUrl : restrictedUrls.get()) {
+        RunningSearch search = new RunningSearch();
+        if (scope == null) {
+          search.pin();
+        } else {
+          scope.retain(search);
+        }
+        union.add(fetchPatientIds(restrictedUrl, URI.create(restrictedUrl),
+            this.config.isElementProjectionEnabled() && patientSearchUrl.isEmpty(), executor, search));
+      }
+    }
+    return union.result();
+  }
+
+  /**
+   * @return ids of the given patients on the FHIR server of this requestor
+   */
+  private List<String> getCandidateIds(ImmutableRoaringBitmap candidates) {
+    String namespace = this.config.getPatientIdNamespace();
+    List<String> patientIds = new ArrayList<>(candidates.getCardinality());
+    candidates.forEach((int code) -> {
+      String patientId = dictionary.decode(code);
+      if (patientId.startsWith(namespace)) {
+        patientIds.add(patientId.substring(namespace.length()));
+      }
+    });
+    return patientIds;
+  }
+
+  /**
+   * Criteria that are cached already are looked up on their own, the others
+   * are merged into multi-value searches
+   */
+  private List<String> planSearches(SortedSet<String> criterionKeys) {
+    if (!searchBatchingEnabled || criterionKeys.size() == 1) {
+      return List.copyOf(criterionKeys);
+    }
+    List<String> searchKeys = new ArrayList<>();
+    List<String> uncachedKeys = new ArrayList<>();
+    for (String criterionKey : criterionKeys) {
+      (cache.getIfPresent(criterionKey) != null ? searchKeys : uncachedKeys).add(criterionKey);
+    }
+    searchKeys.addAll(SearchBatches.batch(uncachedKeys, maxBatchedUrlLength));
+    return searchKeys;
+  }
+
+  /**
+   * @param scope scope waiting for the search if it is being loaded, null to
+   *              keep the search running in any case
+   */
+  private CompletableFuture<CachedIdSet> getCachedIdSet(String key, SearchScope scope) {
+    CompletableFuture<CachedIdSet> loading = cache.get(key);
+    if (!loading.isDone()) {
+      waitFor(key, scope);
+    }
+    return loading
+        .exceptionallyCompose(e -> {
+          // Cancelled by the scopes waiting for the search before this one
+          if (isCancellation(e) && (scope == null || !scope.isClosed())) {
+            cache.asMap().remove(key, loading);
+            return getCachedIdSet(key, scope);
+          }
+          return CompletableFuture.failedFuture(e);
+        })
+        .thenApply(idSet -> {
+          refreshIfStale(key, idSet);
+          return idSet;
+        });
+  }
+
+  private void waitFor(String key, SearchScope scope) {
+    RunningSearch search = runningSearches.get(key);
+    if (search == null) {
+      return;
+    }
+    if (scope == null) {
+      search.pin();
+    } else {
+      scope.retain(search);
+    }
+  }
+
+  private static boolean isCancellation(Throwable e) {
+    while (e != null) {
+      if (e instanceof CancellationException) {
+        return true;
+      }
+      e = e.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * The union counts as fetched when the least recently fetched of its
+   * searches was. Each search is folded into the union as soon as it
+   * arrives, see {@link IdSetAccumulator}
+   */
+  private CompletableFuture<CachedIdSet> getUnionOfSearches(Collection<String> searchKeys, SearchScope scope) {
+    if (searchKeys.size() == 1) {
+      return getCachedIdSet(searchKeys.iterator().next(), scope);
+    }
+    IdSetAccumulator union = IdSetAccumulator.union();
+    LongAccumulator fetchedAtMillis = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    LongAccumulator lastFullFetchMillis = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    for (String searchKey : searchKeys) {
+      union.add(getCachedIdSet(searchKey, scope).thenApply(idSet -> {
+        fetchedAtMillis.accumulate(idSet.getFetchedAtMillis());
+        lastFullFetchMillis.accumulate(idSet.getLastFullFetchMillis());
+        return idSet.getPatientIds();
+      }));
+    }
+    return union.result().thenApply(ids -> new CachedIdSet(CompactIdSets.freeze(ids),
+        fetchedAtMillis.get(), lastFullFetchMillis.get()));
+  }
+
+  private void cacheUnion(String unionKey, Collection<String> searchKeys, CachedIdSet union,
+      long refreshCountBeforeBuild) {
+    synchronized (unionLock) {
+      if (searchRefreshCount != refreshCountBeforeBuild) {
+        return;
+      }
+      for (String searchKey : searchKeys) {
+        unionKeysBySearchKey.computeIfAbsent(searchKey, key -> new HashSet<>()).add(unionKey);
+      }
+      searchKeysByUnionKey.put(unionKey, searchKeys);
+      unionCache.put(unionKey, union);
+    }
+  }
+
+  private void invalidateUnionsOf(String searchKey) {
+    if (unionCache == null) {
+      return;
+    }
+    synchronized (unionLock) {
+      searchRefreshCount++;
+      Set<String> unionKeys = unionKeysBySearchKey.remove(searchKey);
+      if (unionKeys != null) {
+        unionCache.invalidateAll(unionKeys);
+      }
+    }
+  }
+
+  /**
+   * Removal is notified asynchronously, so the union may have been cached
+   * again meanwhile, in which case it is still registered
+   */
+  private void unregisterUnion(String unionKey) {
+    synchronized (unionLock) {
+      if (unionCache.asMap().containsKey(unionKey)) {
+        return;
+      }
+      Collection<String> searchKeys = searchKeysByUnionKey.remove(unionKey);
+      if (searchKeys == null) {
+        return;
+      }
+      for (String searchKey : searchKeys) {
+        unionKeysBySearchKey.computeIfPresent(searchKey, (key, unionKeys) -> {
+          unionKeys.remove(unionKey);
+          return unionKeys.isEmpty() ? null : unionKeys;
+        });
+      }
+    }
+  }
+
+  /**
+   * @param searchCriterion single criterion
+   * @return whether the result of the given criterion is held in memory or
+   * being loaded
+   */
+  public boolean isCached(Criterion searchCriterion) {
+    return cache.getIfPresent(translateCriterion(searchCriterion)) != null;
+  }
+
+  /**
+   * Serves the current entry while the search is executed again in the
+   * background, concurrent refreshes of the same key are merged by the cache
+   */
+  private void refreshIfStale(String key, CachedIdSet idSet) {
+    if (isStale(idSet)) {
+      cache.synchronous().refresh(key);
+    }
+  }
+
+  private boolean isStale(CachedIdSet idSet) {
+    return System.currentTimeMillis() - idSet.getFetchedAtMillis() >= refreshAfterMillis;
+  }
+
+  /**
+   * Writes all entries held in memory to the disk tier, unless already stored
+   * there, closes it and stops the threads of the http client
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (diskCache != null) {
+        cache.synchronous().asMap().forEach(this::storeOnDisk);
+        diskCache.close();
+      }
+    } finally {
+      httpClient.close();
+    }
+  }
+
+  private void storeOnDisk(String key, CachedIdSet idSet) {
+    if (diskCache == null || idSet == null) {
+      return;
+    }
+    OptionalLong storedFetchedAt = diskCache.getFetchedAtMillis(key);
+    if (storedFetchedAt.isPresent() && storedFetchedAt.getAsLong() >= idSet.getFetchedAtMillis()) {
+      return;
+    }
+    try {
+      diskCache.put(key, idSet.getFetchedAtMillis(), idSet.getLastFullFetchMillis(),
+          dictionary.decodeAll(idSet.getPatientIds()));
+    } catch (IOException e) {
+      log.warn("Could not write " + key + " to disk cache", e);
+    }
+  }
+
+
+  /**
+   * Iterates over all cached entries to find the largest one, so this is
+   * meant for monitoring rather than frequent polling
+   *
+   * @return current size and usage statistics of the criterion cache
+   */
+  public CacheMetrics getCacheMetrics() {
+    Cache<String, CachedIdSet> syncCache = cache.synchronous();
+    CacheStats stats = syncCache.stats();
+    long weightedSize = syncCache.policy().eviction()
+        .map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+    long maximumSize = syncCache.policy().eviction().map(Policy.Eviction::getMaximum).orElse(0L);
+    long entryCount = syncCache.estimatedSize();
+    long largestEntry = syncCache.asMap().entrySet().stream()
+        .mapToLong(entry -> BitmapWeigher.weighEntry(entry.getKey(), entry.getValue()))
+        .max().orElse(0L);
+    return new CacheMetrics(entryCount, weightedSize, maximumSize,
+        entryCount == 0 ? 0 : weightedSize / entryCount, largestEntry,
+        stats.hitCount(), stats.missCount(), stats.hitRate(), stats.evictionCount(),
+        stats.loadFailureCount(), stats.averageLoadPenalty() / 1e6,
+        dictionary.size(), dictionary.getRetainedBytes(),
+        diskCache == null ? 0 : diskCache.size(), getDiskCacheFileBytes(),
+        unionCache == null ? 0 : unionCache.estimatedSize(),
+        unionCache == null ? 0 : unionCache.policy().eviction()
+            .map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L),
+        unionCache == null ? 0 : unionCache.stats().hitCount(),
+        unionCache == null ? 0 : unionCache.stats().missCount());
+  }
+
+  private long getDiskCacheFileBytes() {
+    try {
+      return diskCache == null ? 0 : diskCache.getFileBytes();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return current limit and usage of the connections to the FHIR server
+   */
+  public ConcurrencyMetrics getConcurrencyMetrics() {
+    return httpClient.getConcurrencyMetrics(config.getBaseURI().toString());
+  }
+
+  /**
+   * @return prefix of the patient ids found by this requestor within its
+   * dictionary, empty for none
+   */
+  public String getPatientIdNamespace() {
+    return config.getPatientIdNamespace();
+  }
+
+  /**
+   * @return dictionary the cached results of this requestor are encoded with
+   */
+  public PatientIdDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * Checks the disk tier before the FHIR server on a miss, refreshes always
+   * go to the FHIR server. Only loads can be cancelled, refreshes always
+   * complete, as the entry is in use already.
+   */
+  private class CriterionLoader implements AsyncCacheLoader<String, CachedIdSet> {
+
+    @Override
+    public CompletableFuture<? extends CachedIdSet> asyncLoad(String requestUrl, Executor executor) {
+      RunningSearch search = new RunningSearch();
+      runningSearches.put(requestUrl, search);
+      CompletableFuture<CachedIdSet> idSet = new CompletableFuture<>();
+      load(requestUrl, executor, search).whenComplete((loaded, e) -> {
+        runningSearches.remove(requestUrl, search);
+        fitCacheIntoBudget();
+        if (e == null) {
+          idSet.complete(loaded);
+        } else {
+          // Unwrapped, so the cache does not report cancelled loads as failures
+          idSet.completeExceptionally(isCancellation(e) ? new CancellationException(requestUrl + " cancelled") : e);
+        }
+      });
+      return idSet;
+    }
+
+    private CompletableFuture<CachedIdSet> load(String requestUrl, Executor executor, RunningSearch search) {
+      if (diskCache == null) {
+        return fetchCachedIdSet(requestUrl, executor, search);
+      }
+      return CompletableFuture.supplyAsync(() -> diskCache.get(requestUrl), executor)
+          .thenCompose(stored -> {
+            if (stored.isEmpty()) {
+              return fetchCachedIdSet(requestUrl, executor, search);
+            }
+            log.debug("FHIR Search: " + requestUrl + " loaded from disk cache");
+            DiskCacheEntry entry = stored.get();
+            return CompletableFuture.completedFuture(new CachedIdSet(
+                CompactIdSets.freeze(dictionary.encodeAll(entry.getPatientIds())), entry.getFetchedAtMillis(),
+                entry.getLastFullFetchMillis()));
+          });
+    }
 
+    @Override
+    public CompletableFuture<? extends CachedIdSet> asyncReload(String requestUrl, CachedIdSet oldValue,
+        Executor executor) {
+      CompletableFuture<CachedIdSet> reloaded = isDeltaRefreshApplicable(requestUrl, oldValue)
+          ? fetchDelta(requestUrl, oldValue, executor)
+          : fetchCachedIdSet(requestUrl, executor, null);
+      return reloaded.whenComplete((idSet, e) -> fitCacheIntoBudget());
     }
+  }
 
+  /**
+   * @param search search to be cancelled together with the fetch, null if
+   *               it can not be cancelled
+   */
+  private CompletableFuture<CachedIdSet> fetchCachedIdSet(String requestUrl, Executor executor,
+      RunningSearch search) {
+    long fetchedAtMillis = System.currentTimeMillis();
+    return getBitmapCompletableFuture(requestUrl, executor, search)
+        .thenApply(patientIds -> new CachedIdSet(patientIds, fetchedAtMillis, fetchedAtMillis));
+  }
+
+  /**
+   * Patient searches are always refreshed completely, as their result may
+   * change without the resources being updated, e.g. for searches by birth
+   * date relative to today
+   */
+  private boolean isDeltaRefreshApplicable(String requestUrl, CachedIdSet oldValue) {
+    if (!deltaRefreshEnabled
+        || System.currentTimeMillis() - oldValue.getLastFullFetchMillis() >= fullRefreshAfterMillis) {
+      return false;
+    }
+    return !isPatientSearch(requestUrl);
+  }
+
+  /**
+   * Adds the patients of all resources matching the search that have been
+   * updated since the given entry was fetched. Patients whose resources were
+   * deleted or changed to no longer match are only removed by the next full
+   * refresh.
+   */
+  private CompletableFuture<CachedIdSet> fetchDelta(String requestUrl, CachedIdSet oldValue, Executor executor) {
+    long fetchedAtMillis = System.currentTimeMillis();
+    // Covers clock skew between Flare and the FHIR server
+    Instant updatedSince = Instant.ofEpochMilli(oldValue.getFetchedAtMillis() - DELTA_SAFETY_MARGIN_MILLIS)
+        .truncatedTo(ChronoUnit.SECONDS);
+    String deltaUrl = requestUrl + (requestUrl.contains("?") ? "&" : "?") + "_lastUpdated=gt" + updatedSince;
+    return getBitmapCompletableFuture(deltaUrl, executor, null)
+        .thenApply(updatedIds -> new CachedIdSet(
+            CompactIdSets.freeze(ImmutableRoaringBitmap.or(oldValue.getPatientIds(), updatedIds)),
+            fetchedAtMillis, oldValue.getLastFullFetchMillis()));
+  }
 
   @NotNull
-  private CompletableFuture<Set<String>> getSetCompletableFuture(String requestUrl, Executor executor) {
+  private CompletableFuture<ImmutableRoaringBitmap> getBitmapCompletableFuture(String requestUrl, Executor executor,
+      RunningSearch search) {
     log.debug("FHIR Search: " + requestUrl + " not cached or refreshing...");
-    return CompletableFuture.supplyAsync(() -> {
-      String pagecount = this.config.getPageCount();
-      FhirSearchRequest fhirSearchRequest = this.config.getAuthentication()
-              .map((auth) -> new FhirSearchRequest(URI.create(requestUrl), auth, pagecount, fhirR4Context))
-              .orElseGet(() -> new FhirSearchRequest(URI.create(requestUrl), pagecount, fhirR4Context));
-      Set<String> flareStream = createStream(fhirSearchRequest)
-              .map(FlareResource::getPatientId)
-              .collect(Collectors.toSet());
+    // Rewritten searches carry their own projection
+    Optional<String> patientSearchUrl = reverseChaining.rewrite(requestUrl);
+    URI searchUri = URI.create(patientSearchUrl.orElse(requestUrl));
+    boolean projectElements = this.config.isElementProjectionEnabled() && patientSearchUrl.isEmpty();
+    return fetchPatientIds(requestUrl, searchUri, projectElements, executor, search);
+  }
+
+  /**
+   * @param requestUrl search the patients are fetched for, to be logged
+   * @param searchUri search actually sent to the FHIR server
+   */
+  private CompletableFuture<ImmutableRoaringBitmap> fetchPatientIds(String requestUrl, URI searchUri,
+      boolean projectElements, Executor executor, RunningSearch search) {
+    if (isNonBlockingSearch()) {
+      CompletableFuture<MutableRoaringBitmap> patientIds = AsyncFhirSearchRequest.execute(searchUri,
+          this.config.getPageCount(), streamingBundleParser, httpClient, projectElements, dictionary,
+          this.config.getPatientIdNamespace());
+      if (search != null) {
+        search.attach(patientIds);
+      }
+      return patientIds.thenApply(ids -> {
+        log.debug("FHIR Search: " + requestUrl + " finished execution, writing to cache...");
+        return CompactIdSets.freeze(ids);
+      });
+    }
+    CompletableFuture<ImmutableRoaringBitmap> patientIds = CompletableFuture.supplyAsync(() -> {
+      MutableRoaringBitmap ids = new MutableRoaringBitmap();
+      Iterator<String> searchRequest = createSearchRequest(searchUri, projectElements, search);
+      while (searchRequest.hasNext()) {
+        // The iterator aborts its page requests, but may still hold pages received before
+        if (search != null && search.isCancelled()) {
+          throw new CancellationException("FHIR Search: " + requestUrl + " cancelled");
+        }
+        ids.add(dictionary.encode(this.config.getPatientIdNamespace(), searchRequest.next()));
+      }
       log.debug("FHIR Search: " + requestUrl + " finished execution, writing to cache...");
-      return flareStream;
+      return CompactIdSets.freeze(ids);
     }, executor);
+    if (search != null) {
+      search.attach(patientIds);
+    }
+    return patientIds;
   }
 
   /**
@@ -107,42 +810,62 @@ public class FhirRequestor implements de.rwth.imi.flare.api.Requestor {
     return requestUrl.toString();
   }
 
-  @NotNull
-  private Stream<FlareResource> createStream(
-      FhirSearchRequest fhirSearchRequest) {
-    Iterable<FlareResource> streamSource = () -> fhirSearchRequest;
-    return StreamSupport.stream(streamSource.spliterator(), false);
+  /**
+   * Searches running on virtual threads may block while paging, so they
+   * always use the blocking iterators
+   */
+  private boolean isNonBlockingSearch() {
+    FlareThreadPoolConfig threadPoolConfig = this.config.getThreadPoolConfig();
+    boolean virtualThreads = threadPoolConfig != null
+        && threadPoolConfig.getExecutionMode() == ExecutionMode.VIRTUAL;
+    return this.config.isNonBlockingSearchEnabled() && !virtualThreads;
+  }
+
+  /**
+   * @param search search the iterator is cancelled with, null if it can not
+   *               be cancelled
+   */
+  private Iterator<String> createSearchRequest(URI requestUrl, boolean projectElements, RunningSearch search) {
+    String pagecount = this.config.getPageCount();
+    int prefetchDepth = this.config.getPrefetchDepth();
+    if (prefetchDepth > 0) {
+      return new PrefetchingFhirSearchRequest(requestUrl, pagecount, createBundleParser(), httpClient,
+          projectElements, prefetchDepth, search);
+    }
+    return new FhirSearchRequest(requestUrl, pagecount, createBundleParser(), httpClient, projectElements, search);
+  }
+
+  /**
+   * The streaming parser is shared, the HAPI parser is not thread safe and
+   * thus created per search
+   */
+  private BundlePageParser createBundleParser() {
+    if (this.config.getBundleParserType() == BundleParserType.HAPI) {
+      return new HapiBundlePageParser(fhirR4Context);
+    }
+    return streamingBundleParser;
   }
 
 
   private URI buildRequestUrl(Criterion search)
       throws URISyntaxException, IncorrectQueryInputException {
-    // TODO: Find a way to properly concat URLs in Java
     String searchQuery = SearchQueryStringBuilder.constructQueryString(search);
-    String searchUrl = config.getBaseURI().toString() + searchQuery;
-    return new URI(searchUrl);
+    // Equivalent searches share one cache entry and one in-flight search
+    return new URI(SearchKeys.canonicalize(config.getBaseURI(), searchQuery));
   }
 
-  private static class StringSetWeigher implements
-      Weigher<String, Set<String>> {
+  private static class BitmapWeigher implements
+      Weigher<String, CachedIdSet> {
 
     @Override
-    public @NonNegative int weigh(String key, Set<String> idSet) {
-
-      return calcStringMemUsage(key) + (idSet.isEmpty() ? 88:
-          calSetItemMemUsage(calcStringMemUsage(idSet.iterator().next())) * idSet.size());
-
+    public @NonNegative int weigh(String key, CachedIdSet idSet) {
+      // the patient id strings themselves are held once by the dictionary
+      return (int) Math.min(Integer.MAX_VALUE, weighEntry(key, idSet));
     }
 
-    private int calSetItemMemUsage(int elemMemUsage){
-        // 44 = HashMapNode, 16 = table array allocation
-        return 44 + 16 + elemMemUsage;
-    }
-
-    private int calcStringMemUsage(String s){
-      //30 = StringHeader, 24 = ByteArrayHeader
-      return 30 + 24 + s.length();
-
+    static long weighEntry(String key, CachedIdSet idSet) {
+      return CompactIdSets.retainedBytes(key) + CachedIdSet.OVERHEAD_BYTES
+          + CompactIdSets.retainedBytes(idSet.getPatientIds());
     }
   }
 }
@@ -4,6 +4,7 @@ package de.rwth.imi.flare.requestor;
 import java.net.Authenticator;
 import java.net.URI;
 import java.util.Optional;
+import java.util.Set;
 
 public interface FhirRequestorConfig {
 
@@ -36,4 +37,138 @@ public interface FhirRequestorConfig {
      * used by Flare
      */
      FlareThreadPoolConfig getThreadPoolConfig();
+
+
+    /**
+     *
+     * @return FlareHttpClientConfig, setting timeouts and connection limits of the HTTP client
+     * shared by all FHIR searches
+     */
+    default FlareHttpClientConfig getHttpClientConfig() {
+        return FlareHttpClientConfig.defaults();
+    }
+
+
+    /**
+     *
+     * @return BundleParserType, selecting how search responses are parsed. The HAPI parser
+     * serves as fallback for servers whose responses the streaming parser can not handle
+     */
+    default BundleParserType getBundleParserType() {
+        return BundleParserType.STREAMING;
+    }
+
+
+    /**
+     *
+     * @return whether searches ask the server to return only the element referencing the patient
+     * (_elements), instead of complete resources
+     */
+    default boolean isElementProjectionEnabled() {
+        return false;
+    }
+
+
+    /**
+     *
+     * @return number of result pages requested ahead of the page currently being read,
+     * 0 to request the next page only after the current one has been read completely.
+     * Only used when searches are not executed non-blocking
+     */
+    default int getPrefetchDepth() {
+        return 1;
+    }
+
+
+    /**
+     *
+     * @return whether searches are paged through via asynchronous requests instead of occupying a thread of the
+     * executor per search, concurrency is then only bounded by {@link FlareHttpClientConfig#getMaxConnections()}.
+     * Always uses the streaming bundle parser. Ignored in {@link ExecutionMode#VIRTUAL} mode, where blocking while
+     * paging is cheap
+     */
+    default boolean isNonBlockingSearchEnabled() {
+        return true;
+    }
+
+
+    /**
+     *
+     * @return whether criteria joined by OR that differ in a single search parameter only, such as the leaves of an
+     * expanded concept, are fetched by one search listing all their values instead of one search each
+     */
+    default boolean isSearchBatchingEnabled() {
+        return true;
+    }
+
+
+    /**
+     *
+     * @return maximum length of a search url built by merging criteria, longer ones are split. Next page links
+     * returned by some servers repeat the search parameters, so this should stay below the url length limit of the
+     * FHIR server
+     */
+    default int getMaxBatchedUrlLength() {
+        return 6000;
+    }
+
+    /**
+     *
+     * @return maximum length of the body of a POST search accepted by the FHIR server, searches restricted to
+     * candidate patients are split to stay below it
+     */
+    default int getMaxPostBodyLength() {
+        return 100000;
+    }
+
+
+    /**
+     *
+     * @return resource types searched for patients by reverse chaining (_has) instead of for the resources
+     * themselves, see {@link ReverseChaining}. Only types the FHIR server supports reverse chaining for may be listed
+     */
+    default Set<String> getReverseChainingResourceTypes() {
+        return Set.of();
+    }
+
+
+    /**
+     *
+     * @return whether a request for a further page of a search that takes longer than 95% of the recent ones for the
+     * same resource type is sent a second time, using whichever response arrives first, see {@link PageRequestPolicy}
+     */
+    default boolean isPageHedgingEnabled() {
+        return false;
+    }
+
+
+    /**
+     *
+     * @return maximum number of hedged page requests in percent of all page requests
+     */
+    default double getPageHedgeBudgetPercent() {
+        return 5;
+    }
+
+
+    /**
+     *
+     * @return number of times a request for a further page of a search is retried after a connection problem,
+     * timeout, 429 or 5xx status code, 0 to disable retries
+     */
+    default int getMaxPageRetries() {
+        return 2;
+    }
+
+
+    /**
+     *
+     * @return prefix added to the patient ids found on this FHIR server, so that they can be combined with the ids
+     * found on other servers that might use the same ids for different patients. Empty if ids are unique across all
+     * servers. Ids stored by the disk cache carry the prefix, so servers with different prefixes need separate disk
+     * caches
+     */
+    default String getPatientIdNamespace() {
+        return "";
+    }
 }
@@ -1,54 +1,72 @@
 package de.rwth.imi.flare.requestor;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
-import de.rwth.imi.flare.api.FlareResource;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Resource;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.net.Authenticator;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
- * Iterates over the paged results of a given FHIR search request
+ * Iterates over the patient ids referenced by the paged results of a given FHIR search request
  */
 
 @Slf4j
-public class FhirSearchRequest implements Iterator<FlareResource> {
+public class FhirSearchRequest implements Iterator<String> {
     private URI nextPageUri;
-    //Stack of results returned by last request
-    private final Deque<FlareResourceImpl> remainingPageResults;
-    private final HttpClient client;
-    // Parses only JSON FHIR responses
-    private final IParser fhirParser;
+    //Patient ids returned by last request, that have not been iterated over yet
+    private final Deque<String> remainingPageResults;
+    private final FhirHttpClient client;
+    private final BundlePageParser bundleParser;
     private final String pagecount;
+    // _elements parameter restricting results to their patient reference, null to request complete resources
+    private final String elementsProjection;
+    private final String resourceType;
+    // Set by cancel(), possibly from another thread than the iterating one
+    private volatile boolean cancelled = false;
+    private volatile CompletableFuture<SearchPage> pageRequest;
 
-    public FhirSearchRequest(URI fhirRequestUrl, Authenticator auth, String pagecount, FhirContext r4Context){
-        this.nextPageUri = fhirRequestUrl;
-        this.client = HttpClient.newBuilder().authenticator(auth).build();
-        this.pagecount = pagecount;
-        this.fhirParser = r4Context.newJsonParser();
-        this.remainingPageResults = new LinkedBlockingDeque<>();
-        // Execute before any iteration to make sure requests with empty response set don't lead to a true hasNext
-        this.ensureStackFullness(true);
+    /**
+     * @param fhirRequestUrl complete search url, the search itself is sent as POST
+     * @param pagecount number of resources per page, empty String to use the server default
+     * @param bundleParser parser used to extract patient ids and next page links from the responses
+     * @param client shared client used for every page request
+     */
+    public FhirSearchRequest(URI fhirRequestUrl, String pagecount, BundlePageParser bundleParser, FhirHttpClient client){
+        this(fhirRequestUrl, pagecount, bundleParser, client, false);
+    }
+
+    /**
+     * @param fhirRequestUrl complete search url, the search itself is sent as POST
+     * @param pagecount number of resources per page, empty String to use the server default
+     * @param bundleParser parser used to extract patient ids and next page links from the responses
+     * @param client shared client used for every page request
+     * @param projectElements whether to ask the server to return only the patient reference of each resource
+     */
+    public FhirSearchRequest(URI fhirRequestUrl, String pagecount, BundlePageParser bundleParser, FhirHttpClient client,
+                             boolean projectElements){
+        this(fhirRequestUrl, pagecount, bundleParser, client, projectElements, null);
     }
 
-    public FhirSearchRequest(URI fhirRequestUrl, String pagecount, FhirContext r4Context){
+    /**
+     * @param search search this iterator belongs to, cancelling it cancels the iterator, null if it is not cancelled
+     */
+    FhirSearchRequest(URI fhirRequestUrl, String pagecount, BundlePageParser bundleParser, FhirHttpClient client,
+                      boolean projectElements, RunningSearch search){
+        if (search != null) {
+            search.onCancel(this::cancel);
+        }
         this.nextPageUri = fhirRequestUrl;
-        this.client = HttpClient.newBuilder().build();
+        this.client = client;
         this.pagecount = pagecount;
-        this.fhirParser = r4Context.newJsonParser();
-        this.remainingPageResults = new LinkedBlockingDeque<>();
+        this.elementsProjection = SearchRequests.getElementsProjection(fhirRequestUrl, projectElements);
+        this.resourceType = SearchRequests.getResourceType(fhirRequestUrl);
+        this.bundleParser = bundleParser;
+        this.remainingPageResults = new ArrayDeque<>();
         // Execute before any iteration to make sure requests with empty response set don't lead to a true hasNext
         this.ensureStackFullness(true);
     }
@@ -59,31 +77,44 @@ public class FhirSearchRequest implements Iterator<FlareResource> {
     }
 
     @Override
-    public FlareResource next() {
+    public String next() {
         ensureStackFullness(false);
         return this.remainingPageResults.pop();
     }
 
     /**
-     * Fetches next page if stack isn't full, and turns checked exceptions that should not be thrown into unchecked ones
+     * Aborts the page request in flight and stops requesting further pages, the iterating thread fails with a
+     * {@link java.util.concurrent.CancellationException}
+     */
+    public void cancel() {
+        this.cancelled = true;
+        CompletableFuture<SearchPage> pageRequest = this.pageRequest;
+        if (pageRequest != null) {
+            pageRequest.cancel(true);
+        }
+    }
+
+    /**
+     * Fetches next page if stack isn't full, and turns checked exceptions that should not be thrown into unchecked ones.
+     * Keeps fetching while pages come back empty, so that {@link #next()} never hits an empty stack.
      * @param sendPostRequest Determines whether the request is sent via POST or GET
      */
     private void ensureStackFullness(boolean sendPostRequest) throws NoSuchElementException {
-        if(this.remainingPageResults.isEmpty()){
-            if(this.nextPageUri != null){
-                try {
-                    fetchNextPage(sendPostRequest);
-                }
-                // If these Exceptions get thrown, execution can not continue.
-                catch (InterruptedException | URISyntaxException e) {
-                    throw new RuntimeException(e);
-                } catch (IOException e) {
-                    log.error("Error Connecting to FHIR Server with URL " + nextPageUri);
-                    throw new UncheckedIOException(e);
-                }
+        if(this.remainingPageResults.isEmpty() && this.nextPageUri == null && !sendPostRequest){
+            throw new NoSuchElementException();
+        }
+        while(this.remainingPageResults.isEmpty() && this.nextPageUri != null){
+            try {
+                fetchNextPage(sendPostRequest);
+                sendPostRequest = false;
             }
-            else{
-                throw new NoSuchElementException();
+            // If these Exceptions get thrown, execution can not continue.
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                log.error("Error Connecting to FHIR Server with URL " + nextPageUri);
+                throw new UncheckedIOException(e);
             }
         }
     }
@@ -92,77 +123,55 @@ public class FhirSearchRequest implements Iterator<FlareResource> {
      * Fetches the next page of search results and updates {@link #remainingPageResults} and {@link #nextPageUri}
      * @param sendPostRequest Determines whether the request is sent via POST or GET
      */
-    private void fetchNextPage(boolean sendPostRequest) throws IOException, InterruptedException, URISyntaxException {
-        HttpRequest req = sendPostRequest ? buildPostRequest() : HttpRequest.newBuilder().uri(nextPageUri).GET().build();
-        executeRequestAndProcessResponse(req);
-    }
-
-    /**
-     * creates an initial POST Request for a FHIR Search.
-     * This is done to bypass the 2.083 character limit for a URL in a GET request.
-     * @return post request
-     */
-    private HttpRequest buildPostRequest(){
-        String uri = this.nextPageUri.getScheme() + "://" + this.nextPageUri.getAuthority() + this.nextPageUri.getPath() + "/_search";
-        String query = this.nextPageUri.getQuery();
-
-        if ( ! this.pagecount.isEmpty()){
-            query = query + "&_count=" + this.pagecount;
+    private void fetchNextPage(boolean sendPostRequest) throws IOException, InterruptedException {
+        CompletableFuture<SearchPage> pageRequest;
+        if (sendPostRequest) {
+            HttpRequest req = SearchRequests.buildPostRequest(this.client, nextPageUri, this.pagecount,
+                    this.elementsProjection);
+            pageRequest = this.client.sendAsync(req, this.bundleParser::parse);
+        } else {
+            // Further pages are requested via GET, which may be hedged and retried
+            HttpRequest req = SearchRequests.buildNextPageRequest(this.client, nextPageUri);
+            pageRequest = this.client.sendPageAsync(req, this.resourceType, this.bundleParser::parse);
         }
-
-        return HttpRequest.newBuilder(
-                        URI.create(uri))
-                .header("Prefer", "handling=strict")
-                .header("Accept-Encoding", "CSQ")
-                .header("Content-Type", "application/x-www-form-urlencoded")
-                .POST(HttpRequest.BodyPublishers.ofString(query))
-                .build();
-    }
-
-    /**
-     * Executes a given HttpRequest.
-     * Parses both the nextPageLink and the resources contained in the response bundle
-     *
-     * @param req request to be executed
-     * @throws IOException Thrown when a non 2xx http code is received
-     * @throws InterruptedException Thrown by the HttpClient
-     * @throws URISyntaxException Thrown when the FHIR Server returns a malformed URI
-     */
-    private void executeRequestAndProcessResponse(HttpRequest req) throws IOException, InterruptedException, URISyntaxException {
-        HttpResponse<String> response = client.send(req, HttpResponse.BodyHandlers.ofString());
-        if(response.statusCode()/ 100 != 2){
-            throw new IOException("Received HTTP status code indicating request failure: " + response.statusCode());
+        this.pageRequest = pageRequest;
+        // Cancelled while the request was being sent
+        if (this.cancelled) {
+            pageRequest.cancel(true);
         }
-
-        Bundle searchBundle = this.fhirParser.parseResource(Bundle.class, response.body());
-        extractResourcesFromBundle(searchBundle);
-        extractNextPageLink(searchBundle);
+        processResponse(awaitPage(pageRequest));
     }
 
     /**
-     * Extracts the resources contained in a given bundle into the {@link #remainingPageResults} stack
-     * @param searchBundle Response to a search request currently being processed
+     * Waits for the given request, cancelling it if the waiting thread is interrupted
      */
-    private void extractResourcesFromBundle(Bundle searchBundle) {
-        List<Bundle.BundleEntryComponent> entries = searchBundle.getEntry();
-        for(Bundle.BundleEntryComponent entry : entries){
-            Resource resource = entry.getResource();
-            this.remainingPageResults.push(new FlareResourceImpl(resource));
+    private static SearchPage awaitPage(CompletableFuture<SearchPage> pageRequest)
+            throws IOException, InterruptedException {
+        try {
+            return pageRequest.get();
+        } catch (InterruptedException e) {
+            pageRequest.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(cause);
         }
     }
 
     /**
-     * Extracts the Link to the next page of search results from a bundle into {@link #nextPageUri}
-     * @param searchBundle Response to the search request currently being processed
-     * @throws URISyntaxException If the URI contained in the bundle is not valid
+     * Stores both the nextPageLink and the patient ids contained in the response bundle
+     *
+     * @param page parsed response bundle
      */
-    private void extractNextPageLink(Bundle searchBundle) throws URISyntaxException {
-        Bundle.BundleLinkComponent nextLink = searchBundle.getLink(IBaseBundle.LINK_NEXT);
-        if(nextLink == null){
-            this.nextPageUri = null;
-        }
-        else{
-            this.nextPageUri = new URI(nextLink.getUrl());
-        }
+    private void processResponse(SearchPage page) {
+        page.getPatientIds().forEach(this.remainingPageResults::push);
+        this.nextPageUri = page.getNextPageUri();
     }
 }
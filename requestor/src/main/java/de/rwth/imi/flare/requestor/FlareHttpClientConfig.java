@@ -0,0 +1,42 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareHttpClientConfig {
+
+    @Getter int connectTimeoutSeconds;
+    @Getter int requestTimeoutSeconds;
+    @Getter int maxConnections;
+    @Getter boolean http2Enabled;
+    @Getter boolean adaptiveConcurrencyEnabled;
+    @Getter int minConnections;
+
+
+    public FlareHttpClientConfig(int connectTimeoutSeconds, int requestTimeoutSeconds, int maxConnections,
+                                 boolean http2Enabled){
+        this(connectTimeoutSeconds, requestTimeoutSeconds, maxConnections, http2Enabled, true, 1);
+    }
+
+    /**
+     * @param adaptiveConcurrencyEnabled whether the number of concurrent requests adapts to the latency and overload
+     *                                   signals of the FHIR server, see {@link AdaptiveConcurrencyLimit}, instead of
+     *                                   always allowing maxConnections
+     * @param minConnections number of concurrent requests the adaptive limit never goes below
+     */
+    public FlareHttpClientConfig(int connectTimeoutSeconds, int requestTimeoutSeconds, int maxConnections,
+                                 boolean http2Enabled, boolean adaptiveConcurrencyEnabled, int minConnections){
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+        this.requestTimeoutSeconds = requestTimeoutSeconds;
+        this.maxConnections = maxConnections;
+        this.http2Enabled = http2Enabled;
+        this.adaptiveConcurrencyEnabled = adaptiveConcurrencyEnabled;
+        this.minConnections = minConnections;
+    }
+
+    /**
+     * @return configuration used when none is given: 10s connect timeout, 300s request timeout,
+     * at most 32 concurrent connections, adapted to the server, and HTTP/2 where the server supports it
+     */
+    public static FlareHttpClientConfig defaults(){
+        return new FlareHttpClientConfig(10, 300, 32, true);
+    }
+}
@@ -3,10 +3,30 @@ package de.rwth.imi.flare.requestor;
 import de.rwth.imi.flare.api.FlareResource;
 import org.hl7.fhir.r4.model.*;
 
+import java.util.Map;
+
 /**
  * FlareResource, represents a single FHIR Resource and it's associated patient
  */
 public class FlareResourceImpl implements FlareResource {
+    /**
+     * Element holding the patient reference per resource type, "id" for the Patient resource itself.<br>
+     * Has to be kept in sync with the {@link #extractId()} switch. Also used as _elements projection, as this is the
+     * only element Flare reads from a search result.
+     */
+    private static final Map<String, String> PATIENT_REFERENCE_ELEMENTS = Map.ofEntries(
+            Map.entry("Observation", "subject"),
+            Map.entry("Patient", "id"),
+            Map.entry("Condition", "subject"),
+            Map.entry("Specimen", "subject"),
+            Map.entry("Encounter", "subject"),
+            Map.entry("Procedure", "subject"),
+            Map.entry("MedicationAdministration", "subject"),
+            Map.entry("MedicationStatement", "subject"),
+            Map.entry("Immunization", "patient"),
+            Map.entry("Consent", "patient"),
+            Map.entry("DiagnosticReport", "subject"));
+
     private String patientId;
     private final Resource underlyingFhirResource;
 
@@ -85,6 +105,23 @@ public class FlareResourceImpl implements FlareResource {
         return resource.getSubject().getReferenceElement().getIdPart();
     }
 
+    /**
+     * @param resourceType FHIR resource type, e.g. Observation
+     * @return name of the element referencing the patient, "id" for Patient, null if the type is not supported
+     */
+    public static String getPatientReferenceElement(String resourceType) {
+        return PATIENT_REFERENCE_ELEMENTS.get(resourceType);
+    }
+
+    /**
+     * @param resourceType FHIR resource type, e.g. Observation
+     * @return value for the _elements search parameter that restricts results of the given type to their patient
+     * reference, null if the type is not supported
+     */
+    public static String getElementsProjection(String resourceType) {
+        return getPatientReferenceElement(resourceType);
+    }
+
     @Override
     public String getPatientId() {
         return this.patientId;
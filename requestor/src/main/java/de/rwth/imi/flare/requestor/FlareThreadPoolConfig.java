@@ -1,18 +1,100 @@
 package de.rwth.imi.flare.requestor;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
 public class FlareThreadPoolConfig {
 
     @Getter int corePoolSize;
     @Getter int maxPoolSize;
     @Getter int keepAliveTimeSeconds;
+    @Getter ExecutionMode executionMode;
 
 
     public FlareThreadPoolConfig(int corePoolSize, int maxPoolSize, int keepAliveTimeSeconds){
+        this(corePoolSize, maxPoolSize, keepAliveTimeSeconds, ExecutionMode.PLATFORM);
+    }
+
+    public FlareThreadPoolConfig(int corePoolSize, int maxPoolSize, int keepAliveTimeSeconds,
+                                 ExecutionMode executionMode){
         this.corePoolSize = corePoolSize;
         this.maxPoolSize = maxPoolSize;
         this.keepAliveTimeSeconds = keepAliveTimeSeconds;
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * Creates the executor FHIR searches are run on according to this configuration.<br>
+     * In {@link ExecutionMode#PLATFORM} mode corePoolSize threads are kept, further threads are started up to
+     * maxPoolSize while all threads are busy and stopped after being idle for keepAliveTimeSeconds. Tasks are queued
+     * once maxPoolSize threads are busy.
+     * {@link ExecutionMode#VIRTUAL} is looked up reflectively, as the code base is compiled for a Java release
+     * without virtual threads.
+     * @return new executor, to be shut down by the caller
+     */
+    public ExecutorService createExecutorService(){
+        if (this.executionMode == ExecutionMode.VIRTUAL) {
+            ExecutorService virtualThreadExecutor = createVirtualThreadExecutor();
+            if (virtualThreadExecutor != null) {
+                return virtualThreadExecutor;
+            }
+            log.warn("Virtual threads are not available on this JVM, falling back to platform threads");
+        }
+        GrowingTaskQueue queue = new GrowingTaskQueue();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.min(this.corePoolSize, this.maxPoolSize),
+                this.maxPoolSize, this.keepAliveTimeSeconds, TimeUnit.SECONDS, queue,
+                queue::enqueue);
+        queue.executor = executor;
+        return executor;
     }
 
+    /**
+     * An unbounded queue never grows a pool beyond its core size, as the pool only starts further threads when the
+     * queue refuses a task. This queue thus refuses tasks while no thread is idle and the pool may still grow, they
+     * are queued by the rejection handler once it may not.
+     */
+    private static class GrowingTaskQueue extends LinkedBlockingQueue<Runnable> {
+        private ThreadPoolExecutor executor;
 
+        @Override
+        public boolean offer(Runnable task) {
+            if (this.executor.getActiveCount() >= this.executor.getPoolSize()
+                    && this.executor.getPoolSize() < this.executor.getMaximumPoolSize()) {
+                return false;
+            }
+            return super.offer(task);
+        }
+
+        void enqueue(Runnable task, ThreadPoolExecutor pool) {
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            super.offer(task);
+        }
+    }
+
+    /**
+     * @return executor starting a new virtual thread per task, null if virtual threads are not available
+     */
+    private static ExecutorService createVirtualThreadExecutor(){
+        try {
+            MethodHandle factory = MethodHandles.publicLookup().findStatic(java.util.concurrent.Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            return (ExecutorService) factory.invokeExact();
+        } catch (NoSuchMethodException | IllegalAccessException | UnsupportedOperationException e) {
+            // Not present before Java 19, preview only on Java 19 and 20
+            return null;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not create virtual thread executor", e);
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package de.rwth.imi.flare.requestor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses search result bundles into the HAPI FHIR R4 model and extracts the patient ids via {@link FlareResourceImpl}.<br>
+ * Not thread safe, as the underlying {@link IParser} isn't either.
+ */
+public class HapiBundlePageParser implements BundlePageParser {
+    private final IParser fhirParser;
+
+    public HapiBundlePageParser(FhirContext r4Context){
+        this.fhirParser = r4Context.newJsonParser();
+    }
+
+    @Override
+    public SearchPage parse(InputStream bundle) throws IOException {
+        Bundle searchBundle;
+        try {
+            searchBundle = this.fhirParser.parseResource(Bundle.class, bundle);
+        } catch (DataFormatException e) {
+            throw new IOException("Received malformed search bundle", e);
+        }
+        return new SearchPage(extractPatientIds(searchBundle), extractNextPageLink(searchBundle));
+    }
+
+    /**
+     * Extracts the patient ids of the resources contained in a given bundle
+     * @param searchBundle Response to a search request currently being processed
+     */
+    private List<String> extractPatientIds(Bundle searchBundle) {
+        List<Bundle.BundleEntryComponent> entries = searchBundle.getEntry();
+        List<String> patientIds = new ArrayList<>(entries.size());
+        for(Bundle.BundleEntryComponent entry : entries){
+            String patientId = new FlareResourceImpl(entry.getResource()).getPatientId();
+            if(patientId != null){
+                patientIds.add(patientId);
+            }
+        }
+        return patientIds;
+    }
+
+    /**
+     * Extracts the Link to the next page of search results from a bundle
+     * @param searchBundle Response to the search request currently being processed
+     * @throws IOException If the URI contained in the bundle is not valid
+     */
+    private URI extractNextPageLink(Bundle searchBundle) throws IOException {
+        Bundle.BundleLinkComponent nextLink = searchBundle.getLink(IBaseBundle.LINK_NEXT);
+        if(nextLink == null){
+            return null;
+        }
+        try {
+            return new URI(nextLink.getUrl());
+        } catch (URISyntaxException e) {
+            throw new IOException("Received malformed next page link " + nextLink.getUrl(), e);
+        }
+    }
+}
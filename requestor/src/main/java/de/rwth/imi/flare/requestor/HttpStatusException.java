@@ -0,0 +1,19 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the FHIR server answers a request with a non 2xx status code
+ */
+public class HttpStatusException extends IOException {
+    private final int statusCode;
+
+    public HttpStatusException(int statusCode) {
+        super("Received HTTP status code indicating request failure: " + statusCode);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+}
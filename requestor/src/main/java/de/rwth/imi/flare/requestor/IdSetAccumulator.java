@@ -0,0 +1,125 @@
+package de.rwth.imi.flare.requestor;
+
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Combines the patient sets of criteria or groups as each of them arrives, instead of waiting for all of them and
+ * combining them at once.<br>
+ * Sets are registered one by one with {@link #add}, only the running result is held, so every set can be released as
+ * soon as it has been folded in, and the set algebra overlaps with waiting for the remaining searches. The given sets
+ * may be shared with the cache, they are never modified. A single set is passed on as it is, so results must not be
+ * modified either.
+ */
+public final class IdSetAccumulator {
+    private final boolean intersection;
+    private final CompletableFuture<ImmutableRoaringBitmap> result = new CompletableFuture<>();
+    // Sets added but not folded in yet, plus one until result() has been called
+    private final AtomicInteger pendingSets = new AtomicInteger(1);
+    // First set, until a second one has been folded in
+    private ImmutableRoaringBitmap first;
+    // null until a second set has been folded in
+    private MutableRoaringBitmap running;
+
+    private IdSetAccumulator(boolean intersection) {
+        this.intersection = intersection;
+    }
+
+    /**
+     * @return accumulator of the union of the sets to be added
+     */
+    public static IdSetAccumulator union() {
+        return new IdSetAccumulator(false);
+    }
+
+    /**
+     * @return accumulator of the intersection of the sets to be added, completing as soon as the running intersection
+     * is empty. The intersection of no sets is empty
+     */
+    public static IdSetAccumulator intersection() {
+        return new IdSetAccumulator(true);
+    }
+
+    /**
+     * @return future of the union of all given sets, failing as soon as any of them fails
+     */
+    public static CompletableFuture<ImmutableRoaringBitmap> union(
+            Stream<CompletableFuture<ImmutableRoaringBitmap>> sets) {
+        return union().addAll(sets);
+    }
+
+    /**
+     * @return future of the intersection of all given sets, see {@link #intersection()}
+     */
+    public static CompletableFuture<ImmutableRoaringBitmap> intersection(
+            Stream<CompletableFuture<ImmutableRoaringBitmap>> sets) {
+        return intersection().addAll(sets);
+    }
+
+    private CompletableFuture<ImmutableRoaringBitmap> addAll(Stream<CompletableFuture<ImmutableRoaringBitmap>> sets) {
+        sets.forEach(this::add);
+        return result();
+    }
+
+    /**
+     * Folds the given set into the result once it arrives, the future itself is not retained
+     */
+    public void add(CompletableFuture<? extends ImmutableRoaringBitmap> set) {
+        this.pendingSets.incrementAndGet();
+        set.whenComplete(this::fold);
+    }
+
+    /**
+     * To be called once, after the last set has been added
+     * @return future of the combined sets, failing as soon as any of them fails
+     */
+    public CompletableFuture<ImmutableRoaringBitmap> result() {
+        onSetDone();
+        return this.result;
+    }
+
+    private void fold(ImmutableRoaringBitmap ids, Throwable e) {
+        if (this.result.isDone()) {
+            return;
+        }
+        if (e != null) {
+            this.result.completeExceptionally(e);
+            return;
+        }
+        boolean empty;
+        synchronized (this) {
+            if (this.first == null && this.running == null) {
+                this.first = ids;
+            } else if (this.running == null) {
+                this.running = this.intersection
+                        ? ImmutableRoaringBitmap.and(this.first, ids) : ImmutableRoaringBitmap.or(this.first, ids);
+                this.first = null;
+            } else if (this.intersection) {
+                this.running.and(ids);
+            } else {
+                this.running.or(ids);
+            }
+            empty = this.intersection && (this.running == null ? this.first.isEmpty() : this.running.isEmpty());
+        }
+        if (empty) {
+            // The remaining sets can not change an empty intersection
+            this.result.complete(new MutableRoaringBitmap());
+        } else {
+            onSetDone();
+        }
+    }
+
+    private void onSetDone() {
+        if (this.pendingSets.decrementAndGet() != 0) {
+            return;
+        }
+        synchronized (this) {
+            this.result.complete(this.running != null ? this.running
+                    : this.first != null ? this.first : new MutableRoaringBitmap());
+        }
+    }
+}
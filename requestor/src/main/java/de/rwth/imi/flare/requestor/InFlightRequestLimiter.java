@@ -0,0 +1,121 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bounds the number of requests in flight toward a FHIR server.<br>
+ * Unlike a {@link java.util.concurrent.Semaphore}, permits are handed out as futures, so asynchronous callers can
+ * wait for a permit without blocking a thread. Waiting callers are served in FIFO order.<br>
+ * The limit may be changed at any time, e.g. by an {@link AdaptiveConcurrencyLimit}. When it is lowered, requests
+ * already in flight finish normally and no further permits are granted until their number fell below the new limit.
+ */
+public class InFlightRequestLimiter {
+    private final Deque<Waiter> waiting = new ArrayDeque<>();
+    private int limit;
+    private int inFlight = 0;
+    private long grantedCount = 0;
+    private long totalWaitNanos = 0;
+
+    public InFlightRequestLimiter(int maxInFlight){
+        if(maxInFlight < 1){
+            throw new IllegalArgumentException("maxInFlight has to be at least 1, was " + maxInFlight);
+        }
+        this.limit = maxInFlight;
+    }
+
+    /**
+     * Requests a permit, which has to be returned via {@link #release()} once the request finished.<br>
+     * A waiting future that gets cancelled gives up its place in the queue, no release is needed then.
+     * @return future completing as soon as the permit is granted
+     */
+    public synchronized CompletableFuture<Void> acquire(){
+        if(this.inFlight < this.limit && this.waiting.isEmpty()){
+            this.inFlight++;
+            this.grantedCount++;
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        this.waiting.add(new Waiter(permit, System.nanoTime()));
+        return permit;
+    }
+
+    /**
+     * Returns a permit, handing it directly to the longest waiting caller if there is one and the limit permits it
+     */
+    public void release(){
+        synchronized (this) {
+            this.inFlight--;
+        }
+        grantWaiting();
+    }
+
+    /**
+     * @param limit maximum number of requests in flight from now on, at least 1
+     */
+    public void setLimit(int limit){
+        if(limit < 1){
+            throw new IllegalArgumentException("limit has to be at least 1, was " + limit);
+        }
+        synchronized (this) {
+            this.limit = limit;
+        }
+        grantWaiting();
+    }
+
+    private void grantWaiting(){
+        while (true) {
+            Waiter next;
+            synchronized (this) {
+                if (this.inFlight >= this.limit || this.waiting.isEmpty()) {
+                    return;
+                }
+                next = this.waiting.poll();
+                if (next.permit.isDone()) {
+                    // cancelled while waiting
+                    continue;
+                }
+                this.inFlight++;
+                this.grantedCount++;
+                this.totalWaitNanos += System.nanoTime() - next.enqueuedAtNanos;
+            }
+            // completing outside the lock, as dependent actions run in this thread
+            if (!next.permit.complete(null)) {
+                // cancelled meanwhile
+                synchronized (this) {
+                    this.inFlight--;
+                }
+            }
+        }
+    }
+
+    public synchronized int getLimit(){
+        return this.limit;
+    }
+
+    public synchronized int getInFlight(){
+        return this.inFlight;
+    }
+
+    public synchronized int getQueueLength(){
+        return this.waiting.size();
+    }
+
+    /**
+     * @return mean time callers waited for their permit, including those granted immediately
+     */
+    public synchronized double getAverageWaitMillis(){
+        return this.grantedCount == 0 ? 0 : this.totalWaitNanos / 1e6 / this.grantedCount;
+    }
+
+    private static class Waiter {
+        private final CompletableFuture<Void> permit;
+        private final long enqueuedAtNanos;
+
+        private Waiter(CompletableFuture<Void> permit, long enqueuedAtNanos) {
+            this.permit = permit;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Hedges and retries requests for further pages of a search, which are idempotent GET requests.<br>
+ * If a page has not arrived within the 95th percentile of the latencies observed for pages of the same resource type,
+ * a duplicate request is sent and whichever answers first is used. A few slow responses, e.g. caused by a garbage
+ * collection pause on the server, thus no longer delay a whole search. Hedging is limited by a global budget of extra
+ * requests relative to all page requests, so an overloaded server is not hit by even more requests.<br>
+ * Page requests failing due to connection problems, timeouts, 429 or 5xx status codes are retried after an
+ * exponential backoff with full jitter, so that retries of concurrent searches do not arrive at the same time.
+ */
+@Slf4j
+public class PageRequestPolicy {
+    private static final int LATENCY_SAMPLES = 200;
+    // Hedging only starts once the percentile is somewhat reliable
+    private static final int MIN_SAMPLES_FOR_HEDGING = 20;
+    private static final double LATENCY_PERCENTILE = 0.95;
+    // Hedges that may be sent in a burst, once enough budget has been accumulated
+    private static final double MAX_HEDGE_TOKENS = 10;
+    private static final long RETRY_BASE_DELAY_MILLIS = 100;
+    private static final long RETRY_MAX_DELAY_MILLIS = 5000;
+
+    private final boolean hedgingEnabled;
+    private final double hedgeBudget;
+    private final int maxRetries;
+    private final Map<String, LatencyWindow> latenciesByResourceType = new ConcurrentHashMap<>();
+    private double hedgeTokens = 0;
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /**
+     * @param hedgingEnabled whether slow page requests are hedged
+     * @param hedgeBudgetPercent maximum number of hedged requests in percent of all page requests
+     * @param maxRetries number of times a failed page request is retried, 0 to disable retries
+     */
+    public PageRequestPolicy(boolean hedgingEnabled, double hedgeBudgetPercent, int maxRetries){
+        if (hedgeBudgetPercent < 0 || maxRetries < 0){
+            throw new IllegalArgumentException("Invalid hedge budget " + hedgeBudgetPercent + " or retries " + maxRetries);
+        }
+        this.hedgingEnabled = hedgingEnabled;
+        this.hedgeBudget = hedgeBudgetPercent / 100;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return policy sending every page request once
+     */
+    public static PageRequestPolicy disabled(){
+        return new PageRequestPolicy(false, 0, 0);
+    }
+
+    /**
+     * Executes a page request according to this policy
+     *
+     * @param resourceType type of the resources searched for, pages of different types are answered at different speeds
+     * @param attempt sends the page request once each time it is called, has to be idempotent
+     * @return future of the first successful response, failing with the error of the last attempt. Cancelling it
+     * cancels all attempts in flight and prevents further ones
+     */
+    public <T> CompletableFuture<T> execute(String resourceType, Supplier<CompletableFuture<T>> attempt){
+        if (this.hedgingEnabled){
+            synchronized (this) {
+                this.hedgeTokens = Math.min(MAX_HEDGE_TOKENS, this.hedgeTokens + this.hedgeBudget);
+            }
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Set<CompletableFuture<T>> attemptsInFlight = ConcurrentHashMap.newKeySet();
+        Supplier<CompletableFuture<T>> trackedAttempt = () -> {
+            if (result.isDone()){
+                return CompletableFuture.failedFuture(new CancellationException());
+            }
+            CompletableFuture<T> response = attempt.get();
+            attemptsInFlight.add(response);
+            response.whenComplete((value, e) -> attemptsInFlight.remove(response));
+            return response;
+        };
+        executeWithRetries(resourceType, trackedAttempt, 0).whenComplete((value, e) -> {
+            if (e == null){
+                result.complete(value);
+            } else {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((value, e) -> {
+            // Also stops the attempts losing against a hedge
+            attemptsInFlight.forEach(response -> response.cancel(true));
+        });
+        return result;
+    }
+
+    private <T> CompletableFuture<T> executeWithRetries(String resourceType, Supplier<CompletableFuture<T>> attempt,
+                                                        int retry){
+        return executeHedged(resourceType, attempt)
+                .handle((result, e) -> {
+                    if (e == null){
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (retry >= this.maxRetries || !isRetryable(e)){
+                        return CompletableFuture.<T>failedFuture(e);
+                    }
+                    long delayMillis = getRetryDelayMillis(retry);
+                    log.debug("Retrying page request in " + delayMillis + "ms after: " + e);
+                    this.retryCount.incrementAndGet();
+                    return CompletableFuture.supplyAsync(() -> null,
+                                    CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS))
+                            .thenCompose(unused -> executeWithRetries(resourceType, attempt, retry + 1));
+                })
+                .thenCompose(future -> future);
+    }
+
+    private <T> CompletableFuture<T> executeHedged(String resourceType, Supplier<CompletableFuture<T>> attempt){
+        LatencyWindow latencies = this.latenciesByResourceType.computeIfAbsent(resourceType,
+                type -> new LatencyWindow());
+        long startNanos = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // Attempts that may still succeed, the result only fails once all of them have failed
+        AtomicInteger pendingAttempts = new AtomicInteger(1);
+        BiConsumer<T, Throwable> onAttemptDone = (value, e) -> {
+            if (e == null){
+                if (result.complete(value)){
+                    latencies.add(System.nanoTime() - startNanos);
+                }
+            } else if (pendingAttempts.decrementAndGet() == 0){
+                result.completeExceptionally(e);
+            }
+        };
+        attempt.get().whenComplete(onAttemptDone);
+
+        long hedgeDelayNanos = this.hedgingEnabled ? latencies.getPercentileNanos(LATENCY_PERCENTILE) : -1;
+        if (hedgeDelayNanos >= 0){
+            CompletableFuture.delayedExecutor(hedgeDelayNanos, TimeUnit.NANOSECONDS).execute(() -> {
+                if (result.isDone() || !tryTakeHedgeToken()){
+                    return;
+                }
+                pendingAttempts.incrementAndGet();
+                this.hedgeCount.incrementAndGet();
+                attempt.get().whenComplete(onAttemptDone);
+            });
+        }
+        return result;
+    }
+
+    private synchronized boolean tryTakeHedgeToken(){
+        if (this.hedgeTokens < 1){
+            return false;
+        }
+        this.hedgeTokens--;
+        return true;
+    }
+
+    private static long getRetryDelayMillis(int retry){
+        long maxDelayMillis = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << retry);
+        return ThreadLocalRandom.current().nextLong(maxDelayMillis + 1);
+    }
+
+    private static boolean isRetryable(Throwable e){
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof HttpStatusException statusException){
+            int statusCode = statusException.getStatusCode();
+            return statusCode == 429 || statusCode / 100 == 5;
+        }
+        return cause instanceof IOException;
+    }
+
+    public long getHedgeCount(){
+        return this.hedgeCount.get();
+    }
+
+    public long getRetryCount(){
+        return this.retryCount.get();
+    }
+
+    /**
+     * Latencies of the most recent page requests of one resource type
+     */
+    private static class LatencyWindow {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private int count = 0;
+        private int next = 0;
+
+        synchronized void add(long latencyNanos){
+            this.samples[this.next] = latencyNanos;
+            this.next = (this.next + 1) % this.samples.length;
+            this.count = Math.min(this.count + 1, this.samples.length);
+        }
+
+        /**
+         * @return latency not exceeded by the given share of the samples, -1 if there are too few samples
+         */
+        synchronized long getPercentileNanos(double percentile){
+            if (this.count < MIN_SAMPLES_FOR_HEDGING){
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(this.samples, this.count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(percentile * this.count) - 1];
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package de.rwth.imi.flare.requestor;
+
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps every patient id ever seen to a dense int, so that sets of patients can be stored and combined as compressed
+ * bitmaps instead of sets of Strings.<br>
+ * Codes are handed out in order of first appearance and never change, so bitmaps stay valid for the lifetime of the
+ * dictionary, which is why it never evicts any id. Its heap is instead taken from the cache budgets of the
+ * {@link FhirRequestor}s sharing it, see {@link #getRetainedBytesPerRequestor()}. All methods are thread safe, lookups
+ * of known ids do not lock.
+ */
+public class PatientIdDictionary {
+    private static final int INITIAL_CAPACITY = 1024;
+    // ConcurrentHashMap node 32, boxed code 16, slot in the map table 4
+    private static final int MAP_ENTRY_BYTES = 32 + 16 + 4;
+
+    private final ConcurrentHashMap<String, Integer> codesById = new ConcurrentHashMap<>();
+    // Written under the lock only, a code is published via codesById after its id has been stored here
+    private volatile String[] idsByCode = new String[INITIAL_CAPACITY];
+    private int size = 0;
+    // Heap held by the ids and their map entries, without the arrays
+    private long entryBytes = 0;
+    // Requestors sharing this dictionary, each of which accounts for an equal part of its heap
+    private int requestorCount = 0;
+
+    /**
+     * @param patientId id to be encoded
+     * @return code of the given id, a new one if the id has not been seen before
+     */
+    public int encode(String patientId) {
+        Integer code = this.codesById.get(patientId);
+        if (code != null) {
+            return code;
+        }
+        return addIfAbsent(patientId);
+    }
+
+    private synchronized int addIfAbsent(String patientId) {
+        Integer code = this.codesById.get(patientId);
+        if (code != null) {
+            return code;
+        }
+        String[] ids = this.idsByCode;
+        if (this.size == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        int newCode = this.size++;
+        ids[newCode] = patientId;
+        this.idsByCode = ids;
+        this.codesById.put(patientId, newCode);
+        this.entryBytes += CompactIdSets.retainedBytes(patientId) + MAP_ENTRY_BYTES;
+        return newCode;
+    }
+
+    /**
+     * @param namespace prefix keeping the ids of different FHIR servers apart, empty if ids are unique across them
+     * @param patientId id to be encoded
+     * @return code of the namespaced id, which is also what it is decoded to
+     */
+    public int encode(String namespace, String patientId) {
+        return encode(namespace.isEmpty() ? patientId : namespace + patientId);
+    }
+
+    /**
+     * @param code code previously returned by {@link #encode(String)}
+     * @return the patient id the code stands for
+     */
+    public String decode(int code) {
+        return this.idsByCode[code];
+    }
+
+    /**
+     * @param patientIds ids to be encoded
+     * @return new bitmap containing the codes of all given ids
+     */
+    public MutableRoaringBitmap encodeAll(Iterable<String> patientIds) {
+        MutableRoaringBitmap bitmap = new MutableRoaringBitmap();
+        patientIds.forEach(patientId -> bitmap.add(encode(patientId)));
+        return bitmap;
+    }
+
+    /**
+     * @param namespace prefix keeping the ids of different FHIR servers apart, empty if ids are unique across them
+     * @param patientIds ids to be encoded
+     * @return new bitmap containing the codes of all given ids within the namespace
+     */
+    public MutableRoaringBitmap encodeAll(String namespace, Iterable<String> patientIds) {
+        MutableRoaringBitmap bitmap = new MutableRoaringBitmap();
+        patientIds.forEach(patientId -> bitmap.add(encode(namespace, patientId)));
+        return bitmap;
+    }
+
+    /**
+     * @param bitmap codes previously returned by {@link #encode(String)}
+     * @return new set containing the patient ids the codes stand for
+     */
+    public Set<String> decodeAll(ImmutableRoaringBitmap bitmap) {
+        Set<String> patientIds = new HashSet<>(bitmap.getCardinality() * 4 / 3 + 1);
+        String[] ids = this.idsByCode;
+        bitmap.forEach((int code) -> patientIds.add(ids[code]));
+        return patientIds;
+    }
+
+    /**
+     * @return number of distinct patient ids encoded so far
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @return bytes of heap held by this dictionary, assuming latin1 patient ids
+     */
+    public synchronized long getRetainedBytes() {
+        // reverse lookup array of 4 byte references
+        return this.entryBytes + 16 + 4L * this.idsByCode.length;
+    }
+
+    /**
+     * Registers a requestor encoding its results with this dictionary
+     */
+    synchronized void addRequestor() {
+        this.requestorCount++;
+    }
+
+    /**
+     * @return part of {@link #getRetainedBytes()} each requestor sharing this dictionary accounts for
+     */
+    public synchronized long getRetainedBytesPerRequestor() {
+        return getRetainedBytes() / Math.max(1, this.requestorCount);
+    }
+}
@@ -0,0 +1,31 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Search parameters referencing the patient a resource belongs to, per resource type
+ */
+final class PatientSearchParameters {
+    private static final Map<String, String> BY_RESOURCE_TYPE = Map.ofEntries(
+            Map.entry("Observation", "patient"),
+            Map.entry("Condition", "patient"),
+            Map.entry("Specimen", "patient"),
+            Map.entry("Encounter", "patient"),
+            Map.entry("Procedure", "patient"),
+            Map.entry("MedicationAdministration", "patient"),
+            Map.entry("MedicationStatement", "patient"),
+            Map.entry("Immunization", "patient"),
+            Map.entry("DiagnosticReport", "patient"));
+
+    private PatientSearchParameters(){
+    }
+
+    /**
+     * @param resourceType type of the resources searched for
+     * @return parameter referencing the patient, empty if the type is not known to reference one
+     */
+    static Optional<String> of(String resourceType){
+        return Optional.ofNullable(BY_RESOURCE_TYPE.get(resourceType));
+    }
+}
@@ -0,0 +1,244 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Iterates over the patient ids referenced by the paged results of a given FHIR search request, like
+ * {@link FhirSearchRequest}, but pipelines the page requests: the next page is requested as soon as its link has
+ * been read from the current page, so that waiting for the server overlaps with parsing.<br>
+ * At most {@code prefetchDepth} pages are requested beyond the one currently being read, which bounds the number of
+ * parsed pages held in memory to {@code prefetchDepth + 1}. {@link #cancel()} aborts the requests still in flight.
+ */
+@Slf4j
+public class PrefetchingFhirSearchRequest implements Iterator<String> {
+    private final FhirHttpClient client;
+    private final BundlePageParser bundleParser;
+    private final int prefetchDepth;
+    private final URI searchUri;
+    private final String resourceType;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition pageAvailable = lock.newCondition();
+    // Pages parsed completely, that have not been handed to the iterating thread yet
+    private final Deque<SearchPage> readyPages = new ArrayDeque<>();
+    // Pages requested but not yet handed to the iterating thread, including the ones in readyPages
+    private int pagesAhead = 0;
+    // Link to the next page, in case it could not be requested right away because the lookahead was exhausted
+    private URI pendingNextPageUri;
+    private Throwable failure;
+    // Requests of pages not parsed yet, aborted if the search fails or is cancelled
+    private final Set<CompletableFuture<SearchPage>> pageRequests = ConcurrentHashMap.newKeySet();
+
+    // Only accessed by the iterating thread
+    private Iterator<String> currentPage = Collections.emptyIterator();
+
+    /**
+     * @param fhirRequestUrl complete search url, the search itself is sent as POST
+     * @param pagecount number of resources per page, empty String to use the server default
+     * @param bundleParser parser used to extract patient ids and next page links from the responses, has to be
+     *                     thread safe
+     * @param client shared client used for every page request
+     * @param projectElements whether to ask the server to return only the patient reference of each resource
+     * @param prefetchDepth number of pages that may be requested beyond the one currently being read, at least 1
+     */
+    public PrefetchingFhirSearchRequest(URI fhirRequestUrl, String pagecount, BundlePageParser bundleParser,
+                                        FhirHttpClient client, boolean projectElements, int prefetchDepth){
+        this(fhirRequestUrl, pagecount, bundleParser, client, projectElements, prefetchDepth, null);
+    }
+
+    /**
+     * @param search search this iterator belongs to, cancelling it cancels the iterator, null if it is not cancelled
+     */
+    PrefetchingFhirSearchRequest(URI fhirRequestUrl, String pagecount, BundlePageParser bundleParser,
+                                 FhirHttpClient client, boolean projectElements, int prefetchDepth,
+                                 RunningSearch search){
+        if(prefetchDepth < 1){
+            throw new IllegalArgumentException("prefetchDepth has to be at least 1, was " + prefetchDepth);
+        }
+        this.searchUri = fhirRequestUrl;
+        this.resourceType = SearchRequests.getResourceType(fhirRequestUrl);
+        this.client = client;
+        this.bundleParser = bundleParser;
+        this.prefetchDepth = prefetchDepth;
+
+        String elementsProjection = SearchRequests.getElementsProjection(fhirRequestUrl, projectElements);
+        if (search != null) {
+            search.onCancel(this::cancel);
+        }
+        this.pagesAhead = 1;
+        track(this.client.sendAsync(
+                SearchRequests.buildPostRequest(client, fhirRequestUrl, pagecount, elementsProjection),
+                body -> this.bundleParser.parse(body, this::onNextPageLink)));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!this.currentPage.hasNext()) {
+            SearchPage page = takeNextPage();
+            if (page == null) {
+                return false;
+            }
+            this.currentPage = page.getPatientIds().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.currentPage.next();
+    }
+
+    /**
+     * Stops requesting further pages and aborts the requests in flight, the iterating thread fails with a
+     * {@link CancellationException}, also if it is waiting for a page. Has no effect once the search has failed.
+     */
+    public void cancel() {
+        this.lock.lock();
+        try {
+            if (this.failure != null) {
+                return;
+            }
+            this.failure = new CancellationException("FHIR Search " + this.searchUri + " cancelled");
+            this.pendingNextPageUri = null;
+            this.pageAvailable.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        // Cancelling completes dependent stages, which must not run while holding the lock
+        this.pageRequests.forEach(pageRequest -> pageRequest.cancel(true));
+    }
+
+    /**
+     * Waits for the next parsed page, requesting a pending next page once the lookahead allows for it
+     * @return next page, null if all pages have been read
+     */
+    private SearchPage takeNextPage() {
+        SearchPage page;
+        URI toRequest = null;
+        this.lock.lock();
+        try {
+            throwIfFailed();
+            while (this.readyPages.isEmpty()) {
+                if (this.pagesAhead == 0 && this.pendingNextPageUri == null) {
+                    return null;
+                }
+                this.pageAvailable.await();
+                throwIfFailed();
+            }
+            page = this.readyPages.poll();
+            this.pagesAhead--;
+            if (this.pendingNextPageUri != null && this.pagesAhead < this.prefetchDepth) {
+                toRequest = this.pendingNextPageUri;
+                this.pendingNextPageUri = null;
+                this.pagesAhead++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (toRequest != null) {
+            requestNextPage(toRequest);
+        }
+        return page;
+    }
+
+    private void requestNextPage(URI nextPageUri) {
+        Consumer<URI> nextPageLinkListener = SearchRequests.forwardOnce(this::onNextPageLink);
+        track(this.client.sendPageAsync(SearchRequests.buildNextPageRequest(this.client, nextPageUri),
+                this.resourceType, body -> this.bundleParser.parse(body, nextPageLinkListener)));
+    }
+
+    private void track(CompletableFuture<SearchPage> pageRequest) {
+        this.pageRequests.add(pageRequest);
+        pageRequest.whenComplete((page, e) -> {
+            this.pageRequests.remove(pageRequest);
+            onPageParsed(page, e);
+        });
+        // Cancelled while the request was being sent
+        if (hasFailed()) {
+            pageRequest.cancel(true);
+        }
+    }
+
+    /**
+     * Called while a page is still being parsed, requests the next page right away if the lookahead allows for it
+     */
+    private void onNextPageLink(URI nextPageUri) {
+        this.lock.lock();
+        try {
+            if (this.failure != null) {
+                return;
+            }
+            if (this.pagesAhead >= this.prefetchDepth) {
+                this.pendingNextPageUri = nextPageUri;
+                return;
+            }
+            this.pagesAhead++;
+        } finally {
+            this.lock.unlock();
+        }
+        requestNextPage(nextPageUri);
+    }
+
+    private void onPageParsed(SearchPage page, Throwable e) {
+        this.lock.lock();
+        try {
+            if (this.failure != null) {
+                return;
+            }
+            if (e != null) {
+                log.error("Error Connecting to FHIR Server while executing search " + this.searchUri);
+                this.failure = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            } else {
+                this.readyPages.add(page);
+            }
+            this.pageAvailable.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        if (e != null) {
+            this.pageRequests.forEach(pageRequest -> pageRequest.cancel(true));
+        }
+    }
+
+    private boolean hasFailed() {
+        this.lock.lock();
+        try {
+            return this.failure != null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void throwIfFailed() {
+        if (this.failure == null) {
+            return;
+        }
+        if (this.failure instanceof CancellationException cancellation) {
+            throw cancellation;
+        }
+        if (this.failure instanceof IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+        throw new RuntimeException(this.failure);
+    }
+}
@@ -0,0 +1,74 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * Rewrites searches for resources referencing a patient into searches for the patients themselves, using reverse
+ * chaining (_has), e.g. Observation?code=x becomes Patient?_has:Observation:patient:code=x&_elements=id.<br>
+ * The FHIR server then returns every matching patient once, instead of all matching resources, which are often
+ * dozens per patient for repeated measurements.<br>
+ * Each _has parameter is matched by the server independently, so only searches with a single parameter are rewritten,
+ * as several parameters would no longer need to match the same resource. Only the _lastUpdated parameter of delta
+ * refreshes may be added: the patients found in addition then have a matching resource as well as one updated
+ * recently, which includes all patients with a matching resource updated recently.
+ */
+@Slf4j
+public class ReverseChaining {
+    private static final String LAST_UPDATED_PREFIX = "_lastUpdated=";
+
+    private final Set<String> resourceTypes;
+
+    /**
+     * @param resourceTypes types of the resources to be searched by reverse chaining, depending on the support of the
+     *                      FHIR server. Types reverse chaining is not applicable to are ignored
+     */
+    public ReverseChaining(Collection<String> resourceTypes){
+        this.resourceTypes = new HashSet<>();
+        for (String resourceType : resourceTypes){
+            if (PatientSearchParameters.of(resourceType).isPresent()){
+                this.resourceTypes.add(resourceType);
+            } else {
+                log.warn("Reverse chaining is not supported for resource type " + resourceType + ", ignoring it");
+            }
+        }
+    }
+
+    /**
+     * @param searchUrl canonical search url, as built by {@link SearchKeys}
+     * @return equivalent search for patients, if the search can be rewritten
+     */
+    public Optional<String> rewrite(String searchUrl){
+        int queryStart = searchUrl.indexOf('?');
+        if (queryStart < 0){
+            return Optional.empty();
+        }
+        String resourceUrl = searchUrl.substring(0, queryStart);
+        int typeStart = resourceUrl.lastIndexOf('/') + 1;
+        String resourceType = resourceUrl.substring(typeStart);
+        if (!this.resourceTypes.contains(resourceType)){
+            return Optional.empty();
+        }
+        String patientParameter = PatientSearchParameters.of(resourceType).orElseThrow();
+
+        List<String> parameters = new ArrayList<>();
+        int criterionParameters = 0;
+        for (String parameter : searchUrl.substring(queryStart + 1).split("&")){
+            int valueStart = parameter.indexOf('=');
+            // Modifiers can not be combined with _has
+            if (valueStart <= 0 || parameter.substring(0, valueStart).contains(":")){
+                return Optional.empty();
+            }
+            if (!parameter.startsWith(LAST_UPDATED_PREFIX)){
+                criterionParameters++;
+            }
+            parameters.add("_has:" + resourceType + ':' + patientParameter + ':' + parameter);
+        }
+        if (criterionParameters != 1){
+            return Optional.empty();
+        }
+        parameters.add("_elements=id");
+        return Optional.of(resourceUrl.substring(0, typeStart) + "Patient?" + String.join("&", parameters));
+    }
+}
@@ -0,0 +1,75 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A search being loaded into the cache for the first time, together with the number of open {@link SearchScope}s
+ * waiting for it.<br>
+ * Once the last of them is closed, the search is cancelled, unless it has been pinned by a caller without scope, such
+ * as the cache warm-up. Searches other queries still wait for thus continue and populate the cache.
+ */
+class RunningSearch {
+    private int waitingScopes = 0;
+    private boolean pinned = false;
+    // Read without locking for every patient id of a blocking search
+    private volatile boolean cancelled = false;
+    // Abort the requests of the search, run when it is cancelled
+    private final List<Runnable> aborts = new ArrayList<>();
+
+    /**
+     * @return false if the search has already been cancelled
+     */
+    synchronized boolean retain() {
+        if (this.cancelled) {
+            return false;
+        }
+        this.waitingScopes++;
+        return true;
+    }
+
+    void release() {
+        synchronized (this) {
+            this.waitingScopes--;
+            if (this.waitingScopes > 0 || this.pinned || this.cancelled) {
+                return;
+            }
+            this.cancelled = true;
+        }
+        // Cancelling completes dependent stages, which must not run while holding the lock
+        this.aborts.forEach(Runnable::run);
+    }
+
+    /**
+     * Keeps the search running regardless of the scopes waiting for it
+     */
+    synchronized void pin() {
+        this.pinned = true;
+    }
+
+    /**
+     * @param request request of this search, cancelled right away if the search has been cancelled already
+     */
+    void attach(CompletableFuture<?> request) {
+        onCancel(() -> request.cancel(true));
+    }
+
+    /**
+     * @param abort aborts requests of this search that are not represented by a single future, such as the pages of
+     *              a blocking iterator. Run right away if the search has been cancelled already
+     */
+    void onCancel(Runnable abort) {
+        synchronized (this) {
+            if (!this.cancelled) {
+                this.aborts.add(abort);
+                return;
+            }
+        }
+        abort.run();
+    }
+
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+}
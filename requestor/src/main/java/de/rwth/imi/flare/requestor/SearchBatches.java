@@ -0,0 +1,137 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.*;
+
+/**
+ * Merges searches joined by OR into fewer searches, using the comma separated OR lists accepted by FHIR search
+ * parameters.<br>
+ * Searches that differ in the value of a single parameter only, e.g. the leaves of an expanded concept, which share
+ * resource type, value filter, attribute filters and time restriction, are merged into one search listing all of their
+ * values. The merged search is split wherever its url would exceed the given length.
+ */
+public final class SearchBatches {
+
+    private SearchBatches(){
+    }
+
+    /**
+     * @param searchUrls canonical search urls, as built by {@link SearchKeys}
+     * @param maxUrlLength length the merged search urls are kept below, if their single values permit it
+     * @return canonical search urls finding exactly the patients found by any of the given searches
+     */
+    public static List<String> batch(Collection<String> searchUrls, int maxUrlLength){
+        // Searches that are equal except for the value of one parameter, by that parameter and the remaining search
+        Map<String, SortedMap<String, String>> valuesBySignature = new HashMap<>();
+        for (String searchUrl : new TreeSet<>(searchUrls)){
+            ParsedSearch search = ParsedSearch.parse(searchUrl);
+            for (int i = 0; i < search.parameters.size(); i++){
+                String parameter = search.parameters.get(i);
+                int valueStart = parameter.indexOf('=');
+                if (valueStart < 0 || search.countParameters(parameter.substring(0, valueStart + 1)) != 1){
+                    continue;
+                }
+                String signature = search.withoutParameter(i) + '\n' + parameter.substring(0, valueStart + 1);
+                valuesBySignature.computeIfAbsent(signature, key -> new TreeMap<>())
+                        .put(searchUrl, parameter.substring(valueStart + 1));
+            }
+        }
+
+        // Largest groups first, each search is merged into one group at most
+        List<Map.Entry<String, SortedMap<String, String>>> groups = new ArrayList<>(valuesBySignature.entrySet());
+        groups.sort(Comparator.<Map.Entry<String, SortedMap<String, String>>>comparingInt(group -> -group.getValue().size())
+                .thenComparing(Map.Entry::getKey));
+        Set<String> merged = new HashSet<>();
+        List<String> batches = new ArrayList<>();
+        for (Map.Entry<String, SortedMap<String, String>> group : groups){
+            SortedSet<String> values = new TreeSet<>();
+            List<String> members = new ArrayList<>();
+            group.getValue().forEach((searchUrl, value) -> {
+                if (!merged.contains(searchUrl)){
+                    members.add(searchUrl);
+                    values.addAll(Arrays.asList(value.split(",")));
+                }
+            });
+            if (members.size() < 2){
+                continue;
+            }
+            merged.addAll(members);
+            int signatureEnd = group.getKey().indexOf('\n');
+            batches.addAll(buildBatches(ParsedSearch.parse(group.getKey().substring(0, signatureEnd)),
+                    group.getKey().substring(signatureEnd + 1), values, maxUrlLength));
+        }
+        for (String searchUrl : new TreeSet<>(searchUrls)){
+            if (!merged.contains(searchUrl)){
+                batches.add(searchUrl);
+            }
+        }
+        return batches;
+    }
+
+    private static List<String> buildBatches(ParsedSearch remainder, String parameterName, SortedSet<String> values,
+                                             int maxUrlLength){
+        List<String> batches = new ArrayList<>();
+        // Separators of the parameter and of the url, which may remain without any other parameter
+        int fixedLength = remainder.toString().length() + parameterName.length() + 2;
+        StringBuilder batchValues = new StringBuilder();
+        for (String value : values){
+            if (batchValues.length() > 0 && fixedLength + batchValues.length() + 1 + value.length() > maxUrlLength){
+                batches.add(remainder.withParameter(parameterName + batchValues));
+                batchValues.setLength(0);
+            }
+            if (batchValues.length() > 0){
+                batchValues.append(',');
+            }
+            batchValues.append(value);
+        }
+        batches.add(remainder.withParameter(parameterName + batchValues));
+        return batches;
+    }
+
+    /**
+     * Canonical search url split into the part up to the resource type and its sorted parameters
+     */
+    private static class ParsedSearch {
+        private final String resourceUrl;
+        private final List<String> parameters;
+
+        private ParsedSearch(String resourceUrl, List<String> parameters){
+            this.resourceUrl = resourceUrl;
+            this.parameters = parameters;
+        }
+
+        static ParsedSearch parse(String searchUrl){
+            int queryStart = searchUrl.indexOf('?');
+            if (queryStart < 0){
+                return new ParsedSearch(searchUrl, List.of());
+            }
+            List<String> parameters = new ArrayList<>();
+            for (String parameter : searchUrl.substring(queryStart + 1).split("&")){
+                if (!parameter.isEmpty()){
+                    parameters.add(parameter);
+                }
+            }
+            return new ParsedSearch(searchUrl.substring(0, queryStart), parameters);
+        }
+
+        int countParameters(String namePrefix){
+            return (int) this.parameters.stream().filter(parameter -> parameter.startsWith(namePrefix)).count();
+        }
+
+        String withoutParameter(int index){
+            List<String> remaining = new ArrayList<>(this.parameters);
+            remaining.remove(index);
+            return new ParsedSearch(this.resourceUrl, remaining).toString();
+        }
+
+        String withParameter(String parameter){
+            SortedSet<String> extended = new TreeSet<>(this.parameters);
+            extended.add(parameter);
+            return new ParsedSearch(this.resourceUrl, new ArrayList<>(extended)).toString();
+        }
+
+        @Override
+        public String toString(){
+            return this.parameters.isEmpty() ? this.resourceUrl : this.resourceUrl + '?' + String.join("&", this.parameters);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package de.rwth.imi.flare.requestor;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Canonical form of the search urls built for criteria, which serve as cache keys.<br>
+ * Searches differing only in the order of their parameters or of the comma separated (OR joined) values of a
+ * parameter, in duplicate values, in the encoding of values or in the spelling of the base url find the same patients,
+ * so they are mapped to the same url and share one cache entry and one in-flight search.
+ */
+public final class SearchKeys {
+
+    private SearchKeys(){
+    }
+
+    /**
+     * @param baseUri base url of the FHIR server, with or without trailing slash
+     * @param searchQuery query as built by {@link SearchQueryStringBuilder}, e.g. Observation?code=...
+     * @return canonical search url, which is itself a valid search url equivalent to the given one
+     */
+    public static String canonicalize(URI baseUri, String searchQuery){
+        int queryStart = searchQuery.indexOf('?');
+        String resourceType = queryStart < 0 ? searchQuery : searchQuery.substring(0, queryStart);
+        StringBuilder sb = new StringBuilder(canonicalizeBaseUri(baseUri)).append(resourceType);
+        if (queryStart < 0){
+            return sb.toString();
+        }
+
+        // Repeated parameters are joined by AND, so their order does not matter either
+        SortedSet<String> parameters = new TreeSet<>();
+        for (String parameter : searchQuery.substring(queryStart + 1).split("&")){
+            if (!parameter.isEmpty()){
+                parameters.add(canonicalizeParameter(parameter));
+            }
+        }
+        return sb.append('?').append(String.join("&", parameters)).toString();
+    }
+
+    private static String canonicalizeBaseUri(URI baseUri){
+        URI normalized = baseUri.normalize();
+        StringBuilder sb = new StringBuilder();
+        if (normalized.getScheme() != null){
+            sb.append(normalized.getScheme().toLowerCase(Locale.ROOT)).append("://");
+        }
+        if (normalized.getRawAuthority() != null){
+            sb.append(normalized.getRawAuthority().toLowerCase(Locale.ROOT));
+        }
+        String path = normalized.getRawPath() == null ? "" : normalized.getRawPath();
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/'){
+            end--;
+        }
+        return sb.append(path, 0, end).append('/').toString();
+    }
+
+    /**
+     * Sorts and deduplicates the comma separated values of the given parameter and encodes them uniformly.
+     * Parameters without value, such as the operations used for consent, are kept as they are.
+     */
+    private static String canonicalizeParameter(String parameter){
+        int valueStart = parameter.indexOf('=');
+        if (valueStart < 0){
+            return parameter;
+        }
+        SortedSet<String> values = new TreeSet<>();
+        // Commas within a value are encoded, so all remaining ones separate values
+        for (String value : parameter.substring(valueStart + 1).split(",")){
+            String decoded = URLDecoder.decode(value, StandardCharsets.UTF_8).trim();
+            if (!decoded.isEmpty()){
+                values.add(URLEncoder.encode(decoded, StandardCharsets.UTF_8));
+            }
+        }
+        return parameter.substring(0, valueStart).trim() + '=' + String.join(",", values);
+    }
+}
@@ -0,0 +1,18 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Result of parsing a single page of a FHIR search: the referenced patient ids and the link to the next page
+ */
+@Getter
+@AllArgsConstructor
+public class SearchPage {
+    private final List<String> patientIds;
+    // null if this is the last page
+    private final URI nextPageUri;
+}
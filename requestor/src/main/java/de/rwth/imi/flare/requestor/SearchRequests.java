@@ -0,0 +1,126 @@
+package de.rwth.imi.flare.requestor;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Builds the HTTP requests issued while paging through a FHIR search, shared by all search implementations
+ */
+public final class SearchRequests {
+
+    private SearchRequests(){
+    }
+
+    /**
+     * creates an initial POST Request for a FHIR Search.
+     * This is done to bypass the 2.083 character limit for a URL in a GET request.
+     * @param client client the request is built for
+     * @param searchUri complete search url
+     * @param pagecount number of resources per page, empty String to use the server default
+     * @param elementsProjection value of the _elements parameter, null to request complete resources
+     * @return post request
+     */
+    static HttpRequest buildPostRequest(FhirHttpClient client, URI searchUri, String pagecount, String elementsProjection){
+        String uri = searchUri.getScheme() + "://" + searchUri.getAuthority() + searchUri.getPath() + "/_search";
+        String query = searchUri.getQuery();
+
+        if ( ! pagecount.isEmpty()){
+            query = query + "&_count=" + pagecount;
+        }
+        if (elementsProjection != null){
+            query = query + "&_elements=" + elementsProjection;
+        }
+
+        return client.newRequestBuilder(
+                        URI.create(uri))
+                .header("Prefer", "handling=strict")
+                .header("Accept-Encoding", "CSQ")
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(query))
+                .build();
+    }
+
+    /**
+     * creates a POST Request for the number of resources matching a FHIR Search, without any of the resources
+     * @param client client the request is built for
+     * @param searchUri complete search url
+     * @return post request, answered by a bundle stating the total only
+     */
+    static HttpRequest buildCountRequest(FhirHttpClient client, URI searchUri){
+        String uri = searchUri.getScheme() + "://" + searchUri.getAuthority() + searchUri.getPath() + "/_search";
+        String query = buildCountQuery(searchUri);
+
+        return client.newRequestBuilder(
+                        URI.create(uri))
+                .header("Prefer", "handling=strict")
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(query))
+                .build();
+    }
+
+    /**
+     * FHIR does not define _elements together with _summary=count, so any projection of the search, e.g. added by
+     * {@link ReverseChaining}, is dropped
+     * @param searchUri complete search url
+     * @return form encoded body of the request for the number of resources matching the given search
+     */
+    public static String buildCountQuery(URI searchUri){
+        StringJoiner query = new StringJoiner("&");
+        if (searchUri.getQuery() != null){
+            for (String parameter : searchUri.getQuery().split("&")){
+                if (!parameter.startsWith("_elements=")){
+                    query.add(parameter);
+                }
+            }
+        }
+        return query.add("_summary=count").toString();
+    }
+
+    /**
+     * @param client client the request is built for
+     * @param nextPageUri next link as returned by the server
+     * @return GET request for the next page
+     */
+    static HttpRequest buildNextPageRequest(FhirHttpClient client, URI nextPageUri){
+        return client.newRequestBuilder(nextPageUri).GET().build();
+    }
+
+    /**
+     * Looks up the _elements projection for the resource type searched for, which is the last segment of the path
+     * @param searchUri search url, e.g. http://localhost/fhir/Observation?code=...
+     * @param projectElements whether projection is enabled at all
+     * @return projection for the searched resource type, null if there is none or projection is disabled
+     */
+    static String getElementsProjection(URI searchUri, boolean projectElements){
+        if (!projectElements){
+            return null;
+        }
+        return FlareResourceImpl.getElementsProjection(getResourceType(searchUri));
+    }
+
+    /**
+     * @param searchUri search url, e.g. http://localhost/fhir/Observation?code=...
+     * @return the resource type searched for, which is the last segment of the path
+     */
+    static String getResourceType(URI searchUri){
+        String path = searchUri.getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @param nextPageLinkListener listener to be called for the next page link of one page
+     * @return listener forwarding only the first link it is called with, as a hedged or retried page request may
+     * read the same page several times
+     */
+    static Consumer<URI> forwardOnce(Consumer<URI> nextPageLinkListener){
+        AtomicBoolean forwarded = new AtomicBoolean();
+        return nextPageUri -> {
+            if (forwarded.compareAndSet(false, true)){
+                nextPageLinkListener.accept(nextPageUri);
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The FHIR requests a single query waits for, obtained by {@link FhirRequestor#openScope()}.<br>
+ * The scope is closed once the query has finished, has been cancelled or has passed its deadline. Closing it cancels
+ * the requests issued for the query alone, such as counts, and releases the searches it waits for: searches no other
+ * open scope waits for stop paging and abort their requests in flight, the others continue to populate the cache.
+ */
+public class SearchScope implements AutoCloseable {
+    private final List<RunningSearch> searches = new ArrayList<>();
+    private final List<CompletableFuture<?>> requests = new ArrayList<>();
+    private final List<SearchScope> nestedScopes = new ArrayList<>();
+    private boolean closed = false;
+
+    SearchScope() {
+    }
+
+    /**
+     * Waits for the given search until this scope is closed
+     */
+    void retain(RunningSearch search) {
+        synchronized (this) {
+            if (!this.closed) {
+                if (search.retain()) {
+                    this.searches.add(search);
+                }
+                return;
+            }
+        }
+        // Closed meanwhile, the search is started on behalf of no one
+        if (search.retain()) {
+            search.release();
+        }
+    }
+
+    /**
+     * @param request request issued for this scope alone, cancelled when it is closed
+     */
+    void attach(CompletableFuture<?> request) {
+        synchronized (this) {
+            if (!this.closed) {
+                this.requests.add(request);
+                return;
+            }
+        }
+        request.cancel(true);
+    }
+
+    /**
+     * @return scope for the searches of a part of the query that may be given up before the query has finished, e.g.
+     * a conjunction that is known to be empty. It is closed together with this scope at the latest
+     */
+    public SearchScope openNested() {
+        SearchScope nested = new SearchScope();
+        synchronized (this) {
+            if (!this.closed) {
+                this.nestedScopes.add(nested);
+                return nested;
+            }
+        }
+        nested.close();
+        return nested;
+    }
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Releases all searches and cancels all requests of this scope and its nested scopes, closing it again has no
+     * effect
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        this.nestedScopes.forEach(SearchScope::close);
+        this.requests.forEach(request -> request.cancel(true));
+        this.searches.forEach(RunningSearch::release);
+    }
+}
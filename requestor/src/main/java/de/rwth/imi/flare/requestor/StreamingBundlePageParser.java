@@ -0,0 +1,197 @@
+package de.rwth.imi.flare.requestor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads search result bundles in a single pass over the response stream, keeping nothing but the patient reference
+ * of each resource and the next page link.<br>
+ * Which element holds the patient reference is looked up per resource type via
+ * {@link FlareResourceImpl#getPatientReferenceElement(String)}, so both parsers agree on the extracted ids.
+ * The next page link is reported as soon as the link element has been read, which for servers writing it before the
+ * entries (e.g. Blaze) is before the first resource. Stateless and thread safe.
+ */
+public class StreamingBundlePageParser implements BundlePageParser {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Override
+    public SearchPage parse(InputStream bundle) throws IOException {
+        return parse(bundle, nextPageUri -> {});
+    }
+
+    @Override
+    public SearchPage parse(InputStream bundle, Consumer<URI> nextPageLinkListener) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Search response is not a JSON object");
+            }
+            List<String> patientIds = new ArrayList<>();
+            URI nextPageUri = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (fieldName.equals("entry") && value == JsonToken.START_ARRAY) {
+                    readEntries(parser, patientIds);
+                } else if (fieldName.equals("link") && value == JsonToken.START_ARRAY) {
+                    nextPageUri = readNextPageLink(parser);
+                    if (nextPageUri != null) {
+                        nextPageLinkListener.accept(nextPageUri);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new SearchPage(patientIds, nextPageUri);
+        }
+    }
+
+    /**
+     * Reads the total of a search bundle, as returned for searches with _summary=count
+     * @param bundle search result bundle
+     * @return number of resources matching the search
+     * @throws IOException if the bundle can not be read or does not state a total
+     */
+    public int readTotal(InputStream bundle) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Search response is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (fieldName.equals("total") && value == JsonToken.VALUE_NUMBER_INT) {
+                    return parser.getIntValue();
+                }
+                parser.skipChildren();
+            }
+            throw new IOException("Search response does not state a total");
+        }
+    }
+
+    /**
+     * Reads the entry array, the parser has to be positioned on its start
+     */
+    private void readEntries(JsonParser parser, List<String> patientIds) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (fieldName.equals("resource") && value == JsonToken.START_OBJECT) {
+                    String patientId = readPatientId(parser);
+                    if (patientId != null) {
+                        patientIds.add(patientId);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a single resource, keeping only the elements that may identify its patient
+     * @return id of the patient the resource belongs to, null if it can not be determined
+     */
+    private String readPatientId(JsonParser parser) throws IOException {
+        String resourceType = null;
+        String id = null;
+        String subjectReference = null;
+        String patientReference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (fieldName) {
+                case "resourceType" -> resourceType = parser.getValueAsString();
+                case "id" -> id = parser.getValueAsString();
+                case "subject" -> subjectReference = readReference(parser, value);
+                case "patient" -> patientReference = readReference(parser, value);
+                default -> parser.skipChildren();
+            }
+        }
+
+        String referenceElement = resourceType == null ? null : FlareResourceImpl.getPatientReferenceElement(resourceType);
+        if (referenceElement == null) {
+            return null;
+        }
+        return switch (referenceElement) {
+            case "id" -> id;
+            case "subject" -> extractIdPart(subjectReference);
+            case "patient" -> extractIdPart(patientReference);
+            default -> null;
+        };
+    }
+
+    /**
+     * Reads a Reference datatype
+     * @return value of its reference element, null if absent
+     */
+    private String readReference(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String reference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (fieldName.equals("reference")) {
+                reference = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return reference;
+    }
+
+    /**
+     * Reads the link array, the parser has to be positioned on its start
+     * @return URI of the link with relation "next", null if there is none
+     */
+    private URI readNextPageLink(JsonParser parser) throws IOException {
+        URI nextPageUri = null;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String relation = null;
+            String url = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                switch (fieldName) {
+                    case "relation" -> relation = parser.getValueAsString();
+                    case "url" -> url = parser.getValueAsString();
+                    default -> parser.skipChildren();
+                }
+            }
+            if ("next".equals(relation) && url != null) {
+                try {
+                    nextPageUri = new URI(url);
+                } catch (URISyntaxException e) {
+                    throw new IOException("Received malformed next page link " + url, e);
+                }
+            }
+        }
+        return nextPageUri;
+    }
+
+    /**
+     * Extracts the id part of a reference, e.g. "123" for "Patient/123" or "http://server/fhir/Patient/123/_history/2"
+     */
+    private static String extractIdPart(String reference) {
+        if (reference == null || reference.isEmpty()) {
+            return null;
+        }
+        int historyIndex = reference.indexOf("/_history/");
+        if (historyIndex >= 0) {
+            reference = reference.substring(0, historyIndex);
+        }
+        return reference.substring(reference.lastIndexOf('/') + 1);
+    }
+}
@@ -1,9 +1,10 @@
 
-import ca.uhn.fhir.context.FhirContext;
-import de.rwth.imi.flare.api.FlareResource;
 import de.rwth.imi.flare.api.model.Comparator;
+import de.rwth.imi.flare.requestor.FhirHttpClient;
 import de.rwth.imi.flare.requestor.FhirSearchRequest;
+import de.rwth.imi.flare.requestor.FlareHttpClientConfig;
 import de.rwth.imi.flare.requestor.IncorrectQueryInputException;
+import de.rwth.imi.flare.requestor.StreamingBundlePageParser;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.junit.jupiter.Container;
@@ -18,6 +19,7 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
+import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -90,13 +92,14 @@ public class FlareFhirAgeIT {
     }
 
     private int getNumberResultPatIds (String uri) throws URISyntaxException {
-        FhirSearchRequest fhirSearchRequest = new FhirSearchRequest(new URI(uri), "50", FhirContext.forR4());
+        FhirSearchRequest fhirSearchRequest = new FhirSearchRequest(new URI(uri), "50", new StreamingBundlePageParser(),
+                new FhirHttpClient(FlareHttpClientConfig.defaults(), Optional.empty()));
 
         System.out.println("URI: " + uri + " \nfound patients: ");
         int patientCount = 0;
         while (fhirSearchRequest.hasNext()) {
-            FlareResource res = fhirSearchRequest.next();
-            System.out.println(res.getPatientId());
+            String patientId = fhirSearchRequest.next();
+            System.out.println(patientId);
             patientCount++;
         }
         System.out.println("---");
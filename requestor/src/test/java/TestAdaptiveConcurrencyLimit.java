@@ -0,0 +1,64 @@
+import de.rwth.imi.flare.requestor.AdaptiveConcurrencyLimit;
+import de.rwth.imi.flare.requestor.InFlightRequestLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestAdaptiveConcurrencyLimit {
+    private static final long MILLIS = 1_000_000;
+
+    @Test
+    public void limitGrowsWhileLatencyIsStableAndUsed() {
+        InFlightRequestLimiter limiter = new InFlightRequestLimiter(32);
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(limiter, 1, 32);
+        assertEquals(8, limiter.getLimit());
+
+        for (int i = 0; i < 200; i++) {
+            saturate(limiter);
+            limit.onResponse(10 * MILLIS, false);
+        }
+
+        assertTrue(limiter.getLimit() > 8);
+        assertTrue(limiter.getLimit() <= 32);
+    }
+
+    @Test
+    public void limitShrinksOnOverloadButNotBelowMinimum() {
+        InFlightRequestLimiter limiter = new InFlightRequestLimiter(32);
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(limiter, 2, 32);
+
+        limit.onResponse(10 * MILLIS, true);
+        assertEquals(4, limiter.getLimit());
+        limit.onTimeout();
+        limit.onTimeout();
+        assertEquals(2, limiter.getLimit());
+        assertEquals(3, limit.getOverloadCount());
+    }
+
+    @Test
+    public void raisedLimitGrantsWaitingPermits() {
+        InFlightRequestLimiter limiter = new InFlightRequestLimiter(1);
+        assertTrue(limiter.acquire().isDone());
+        CompletableFuture<Void> waiting = limiter.acquire();
+        assertFalse(waiting.isDone());
+
+        limiter.setLimit(2);
+
+        assertTrue(waiting.isDone());
+        assertEquals(2, limiter.getInFlight());
+        limiter.setLimit(1);
+        limiter.release();
+        CompletableFuture<Void> next = limiter.acquire();
+        assertFalse(next.isDone());
+        limiter.release();
+        assertTrue(next.isDone());
+    }
+
+    private static void saturate(InFlightRequestLimiter limiter) {
+        while (limiter.getInFlight() < limiter.getLimit()) {
+            limiter.acquire();
+        }
+    }
+}
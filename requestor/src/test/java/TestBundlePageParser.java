@@ -0,0 +1,112 @@
+import ca.uhn.fhir.context.FhirContext;
+import de.rwth.imi.flare.requestor.BundlePageParser;
+import de.rwth.imi.flare.requestor.HapiBundlePageParser;
+import de.rwth.imi.flare.requestor.SearchPage;
+import de.rwth.imi.flare.requestor.StreamingBundlePageParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TestBundlePageParser {
+    private static final String SEARCH_BUNDLE = """
+            {
+              "resourceType": "Bundle",
+              "type": "searchset",
+              "total": 4,
+              "entry": [
+                {
+                  "fullUrl": "http://localhost:8080/fhir/Observation/1",
+                  "resource": {
+                    "resourceType": "Observation",
+                    "id": "1",
+                    "status": "final",
+                    "code": {"coding": [{"system": "http://loinc.org", "code": "76689-9"}]},
+                    "subject": {"reference": "Patient/p1", "display": "irrelevant"},
+                    "valueCodeableConcept": {"coding": [{"code": "female"}]}
+                  },
+                  "search": {"mode": "match"}
+                },
+                {
+                  "resource": {
+                    "id": "2",
+                    "subject": {"reference": "http://localhost:8080/fhir/Patient/p2/_history/3"},
+                    "resourceType": "Observation",
+                    "status": "final",
+                    "code": {"coding": [{"system": "http://loinc.org", "code": "76689-9"}]}
+                  }
+                },
+                {
+                  "resource": {
+                    "resourceType": "Immunization",
+                    "id": "3",
+                    "status": "completed",
+                    "vaccineCode": {"coding": [{"code": "XM1NL1"}]},
+                    "patient": {"reference": "Patient/p3"},
+                    "occurrenceDateTime": "2021-01-01"
+                  }
+                },
+                {
+                  "resource": {
+                    "resourceType": "Patient",
+                    "id": "p4",
+                    "gender": "female"
+                  }
+                }
+              ],
+              "link": [
+                {"relation": "self", "url": "http://localhost:8080/fhir/Observation?code=76689-9"},
+                {"relation": "next", "url": "http://localhost:8080/fhir/Observation?code=76689-9&__page-offset=4"}
+              ]
+            }
+            """;
+
+    private static final String LAST_PAGE_BUNDLE = """
+            {"resourceType": "Bundle", "type": "searchset", "link": [{"relation": "self", "url": "http://localhost/fhir/Condition"}]}
+            """;
+
+    @Test
+    public void streamingParserExtractsPatientIdsAndNextLink() throws IOException {
+        SearchPage page = parse(new StreamingBundlePageParser(), SEARCH_BUNDLE);
+
+        assertEquals(List.of("p1", "p2", "p3", "p4"), page.getPatientIds());
+        assertEquals(URI.create("http://localhost:8080/fhir/Observation?code=76689-9&__page-offset=4"), page.getNextPageUri());
+    }
+
+    @Test
+    public void streamingParserMatchesHapiParser() throws IOException {
+        SearchPage streamed = parse(new StreamingBundlePageParser(), SEARCH_BUNDLE);
+        SearchPage parsed = parse(new HapiBundlePageParser(FhirContext.forR4()), SEARCH_BUNDLE);
+
+        assertEquals(parsed.getPatientIds(), streamed.getPatientIds());
+        assertEquals(parsed.getNextPageUri(), streamed.getNextPageUri());
+    }
+
+    @Test
+    public void lastPageHasNoNextLink() throws IOException {
+        SearchPage page = parse(new StreamingBundlePageParser(), LAST_PAGE_BUNDLE);
+
+        assertEquals(List.of(), page.getPatientIds());
+        assertNull(page.getNextPageUri());
+    }
+
+    @Test
+    public void streamingParserReadsTotal() throws IOException {
+        String countBundle = """
+                {"resourceType": "Bundle", "type": "searchset", "meta": {"tag": [{"code": "SUBSETTED"}]}, "total": 4711}
+                """;
+
+        assertEquals(4711, new StreamingBundlePageParser().readTotal(
+                new ByteArrayInputStream(countBundle.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private SearchPage parse(BundlePageParser parser, String bundle) throws IOException {
+        return parser.parse(new ByteArrayInputStream(bundle.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,31 @@
+import de.rwth.imi.flare.requestor.CandidateRestriction;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestCandidateRestriction {
+    private static final String BASE = "http://localhost:8080/fhir/";
+
+    @Test
+    public void searchesAreRestrictedByPatientReferenceOrId() {
+        assertEquals(Optional.of(List.of(BASE + "Observation?code=loinc%7C1&patient=Patient/a,Patient/b")),
+                CandidateRestriction.restrict(BASE + "Observation?code=loinc%7C1", List.of("a", "b"), 100000));
+        assertEquals(Optional.of(List.of(BASE + "Patient?gender=female&_id=a,b")),
+                CandidateRestriction.restrict(BASE + "Patient?gender=female", List.of("a", "b"), 100000));
+        assertTrue(CandidateRestriction.restrict(BASE + "Consent?status=active", List.of("a"), 100000).isEmpty());
+    }
+
+    @Test
+    public void candidatesAreSplitByBodyLength() {
+        // 16 characters of query and parameter, 100 reserved for paging parameters, leaving 5 for the candidates
+        List<String> searches = CandidateRestriction.restrict(BASE + "Patient?gender=male",
+                List.of("p1", "p2", "p3", "p4", "p5"), 121).orElseThrow();
+
+        assertEquals(List.of(BASE + "Patient?gender=male&_id=p1,p2", BASE + "Patient?gender=male&_id=p3,p4",
+                BASE + "Patient?gender=male&_id=p5"), searches);
+    }
+}
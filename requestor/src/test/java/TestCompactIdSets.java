@@ -0,0 +1,39 @@
+import de.rwth.imi.flare.requestor.CompactIdSets;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestCompactIdSets {
+
+    @Test
+    public void frozenSetKeepsContentAndWeighsItsArray() {
+        MutableRoaringBitmap bitmap = MutableRoaringBitmap.bitmapOf(1, 5, 70000);
+        bitmap.add(100L, 20000L);
+        MutableRoaringBitmap expected = bitmap.clone();
+
+        ImmutableRoaringBitmap frozen = CompactIdSets.freeze(bitmap);
+
+        assertEquals(expected, frozen.toMutableRoaringBitmap());
+        assertTrue(CompactIdSets.retainedBytes(frozen) >= frozen.serializedSizeInBytes());
+        assertEquals(0, CompactIdSets.retainedBytes(frozen) % 8);
+    }
+
+    @Test
+    public void frozenSetCanBeFrozenAgain() {
+        ImmutableRoaringBitmap frozen = CompactIdSets.freeze(MutableRoaringBitmap.bitmapOf(1, 5, 70000));
+
+        ImmutableRoaringBitmap refrozen = CompactIdSets.freeze(frozen);
+
+        assertEquals(frozen, refrozen);
+        assertEquals(frozen.serializedSizeInBytes(), refrozen.serializedSizeInBytes());
+    }
+
+    @Test
+    public void stringWeightIsAligned() {
+        assertEquals(24 + 24, CompactIdSets.retainedBytes("Patient"));
+        assertEquals(24 + 16, CompactIdSets.retainedBytes(""));
+    }
+}
@@ -0,0 +1,118 @@
+import de.rwth.imi.flare.requestor.DiskCacheEntry;
+import de.rwth.imi.flare.requestor.DiskCacheStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestDiskCacheStore {
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void storedEntriesSurviveReopening() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            store.put("Condition?code=a", 1000, List.of("p10", "p1", "p100", "\u00e4-p2"));
+            store.put("Condition?code=b", 2000, List.of());
+            store.put("Condition?code=a", 3000, List.of("p3"));
+        }
+
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            DiskCacheEntry a = store.get("Condition?code=a").orElseThrow();
+            assertEquals(3000, a.getFetchedAtMillis());
+            assertEquals(List.of("p3"), a.getPatientIds());
+            assertEquals(List.of(), store.get("Condition?code=b").orElseThrow().getPatientIds());
+            assertTrue(store.get("Condition?code=c").isEmpty());
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    public void idsAreStoredSorted() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            store.put("key", 1, List.of("p10", "p1", "p100", "\u00e4-p2"));
+
+            assertEquals(List.of("p1", "p10", "p100", "\u00e4-p2"), store.get("key").orElseThrow().getPatientIds());
+        }
+    }
+
+    @Test
+    public void timeOfLastFullFetchIsKept() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            store.put("full", 1000, List.of("p1"));
+            store.put("delta", 3000, 2000, List.of("p1", "p2"));
+        }
+
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            assertEquals(1000, store.get("full").orElseThrow().getLastFullFetchMillis());
+            DiskCacheEntry delta = store.get("delta").orElseThrow();
+            assertEquals(3000, delta.getFetchedAtMillis());
+            assertEquals(2000, delta.getLastFullFetchMillis());
+        }
+    }
+
+    @Test
+    public void incompleteTrailingRecordIsDropped() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            store.put("key", 1, List.of("p1"));
+        }
+        Files.write(this.directory.resolve("criteria.dat"), new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            assertEquals(List.of("p1"), store.get("key").orElseThrow().getPatientIds());
+            store.put("other", 2, List.of("p2"));
+            assertEquals(List.of("p2"), store.get("other").orElseThrow().getPatientIds());
+        }
+    }
+
+    @Test
+    public void zeroFilledTailIsDropped() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            store.put("key", 1, List.of("p1"));
+        }
+        Files.write(this.directory.resolve("criteria.dat"), new byte[64], StandardOpenOption.APPEND);
+
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            assertEquals(List.of("p1"), store.get("key").orElseThrow().getPatientIds());
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void recordWithOversizedKeyIsDropped() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            store.put("key", 1, List.of("p1"));
+        }
+        long validBytes = Files.size(this.directory.resolve("criteria.dat"));
+        // Record of 8 bytes, claiming a key of 2 GB
+        Files.write(this.directory.resolve("criteria.dat"), new byte[]{0, 0, 0, 8, 0x7f, -1, -1, -1, 0, 0, 0, 0},
+                StandardOpenOption.APPEND);
+
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, MAX_BYTES)) {
+            assertEquals(List.of("p1"), store.get("key").orElseThrow().getPatientIds());
+            assertEquals(validBytes, store.getFileBytes());
+        }
+    }
+
+    @Test
+    public void oldestEntriesAreDroppedWhenFull() throws IOException {
+        List<String> ids = IntStream.range(0, 20000).mapToObj(i -> "patient-" + i * 7919).toList();
+        try (DiskCacheStore store = new DiskCacheStore(this.directory, 64 * 1024)) {
+            for (int i = 0; i < 20; i++) {
+                store.put("key" + i, i, ids.subList(0, 2000));
+            }
+            assertTrue(store.getFileBytes() <= 64 * 1024);
+            assertTrue(store.get("key19").isPresent());
+            assertTrue(store.get("key0").isEmpty());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import com.sun.net.httpserver.HttpServer;
+import de.rwth.imi.flare.requestor.FhirHttpClient;
+import de.rwth.imi.flare.requestor.FlareHttpClientConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestFhirHttpClient {
+    private static final String BASE_URI = "http://localhost/fhir";
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private HttpRequest request;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+        request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getAddress().getPort() + "/"))
+                .GET().build();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void cancellingWhileThePermitIsGrantedReturnsIt() throws Exception {
+        FhirHttpClient client = new FhirHttpClient(new FlareHttpClientConfig(10, 10, 1, false, false, 1),
+                Optional.empty());
+        CountDownLatch firstMayFinish = new CountDownLatch(1);
+        CompletableFuture<String> first = client.sendAsync(request, body -> {
+            try {
+                firstMayFinish.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        });
+        CompletableFuture<String> queued = client.sendAsync(request,
+                body -> new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        // Dependent actions run in reverse order of registration, so the permit of the first request is handed to the
+        // queued one after it has been cancelled, but before the client reacts to the cancellation
+        queued.whenComplete((value, e) -> {
+            firstMayFinish.countDown();
+            first.join();
+        });
+
+        queued.cancel(true);
+
+        assertEquals("ok", first.join());
+        awaitNoRequestInFlight(client);
+        client.close();
+    }
+
+    @Test
+    public void closedClientRejectsRequests() throws InterruptedException {
+        FhirHttpClient client = new FhirHttpClient(FlareHttpClientConfig.defaults(), Optional.empty());
+        client.close();
+
+        CompletableFuture<String> response = client.sendAsync(request,
+                body -> new String(body.readAllBytes(), StandardCharsets.UTF_8));
+
+        CompletionException e = assertThrows(CompletionException.class, response::join);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        awaitNoRequestInFlight(client);
+    }
+
+    private static void awaitNoRequestInFlight(FhirHttpClient client) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getConcurrencyMetrics(BASE_URI).getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, client.getConcurrencyMetrics(BASE_URI).getInFlight());
+    }
+}
@@ -1,19 +1,22 @@
-import ca.uhn.fhir.context.FhirContext;
-import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.requestor.FhirHttpClient;
 import de.rwth.imi.flare.requestor.FhirSearchRequest;
+import de.rwth.imi.flare.requestor.FlareHttpClientConfig;
+import de.rwth.imi.flare.requestor.StreamingBundlePageParser;
 import org.junit.jupiter.api.Test;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Optional;
 
 public class TestFhirRequestor {
     @Test
     public void testRequest() throws URISyntaxException {
         String t = "http://localhost:8080/fhir/Condition?code=http%3A%2F%2Ffhir.de%2FCodeSystem%2Fdimdi%2Ficd-10-gm%7CJ45.9";
-        FhirSearchRequest fhirSearchRequest = new FhirSearchRequest(new URI(t), "50", FhirContext.forR4());
+        FhirSearchRequest fhirSearchRequest = new FhirSearchRequest(new URI(t), "50", new StreamingBundlePageParser(),
+                new FhirHttpClient(FlareHttpClientConfig.defaults(), Optional.empty()));
         while (fhirSearchRequest.hasNext()) {
-            FlareResource res = fhirSearchRequest.next();
-            System.out.println(res.getPatientId());
+            String patientId = fhirSearchRequest.next();
+            System.out.println(patientId);
         }
     }
 }
@@ -0,0 +1,69 @@
+import de.rwth.imi.flare.requestor.IdSetAccumulator;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestIdSetAccumulator {
+
+    @Test
+    public void setsAreUnitedAsTheyArrive() throws ExecutionException, InterruptedException {
+        CompletableFuture<ImmutableRoaringBitmap> first = new CompletableFuture<>();
+        CompletableFuture<ImmutableRoaringBitmap> second = new CompletableFuture<>();
+        MutableRoaringBitmap shared = MutableRoaringBitmap.bitmapOf(1, 2);
+
+        CompletableFuture<ImmutableRoaringBitmap> union = IdSetAccumulator.union(Stream.of(first, second));
+        second.complete(MutableRoaringBitmap.bitmapOf(3));
+        assertFalse(union.isDone());
+        first.complete(shared);
+
+        assertEquals(MutableRoaringBitmap.bitmapOf(1, 2, 3), union.get());
+        assertEquals(MutableRoaringBitmap.bitmapOf(1, 2), shared);
+    }
+
+    @Test
+    public void emptyRunningIntersectionCompletesWithoutRemainingSets()
+            throws ExecutionException, InterruptedException {
+        CompletableFuture<ImmutableRoaringBitmap> first = new CompletableFuture<>();
+        CompletableFuture<ImmutableRoaringBitmap> second = new CompletableFuture<>();
+        CompletableFuture<ImmutableRoaringBitmap> neverAnswered = new CompletableFuture<>();
+
+        CompletableFuture<ImmutableRoaringBitmap> intersection =
+                IdSetAccumulator.intersection(Stream.of(first, second, neverAnswered));
+        first.complete(MutableRoaringBitmap.bitmapOf(1, 2));
+        assertFalse(intersection.isDone());
+        second.complete(MutableRoaringBitmap.bitmapOf(3));
+
+        assertTrue(intersection.get().isEmpty());
+    }
+
+    @Test
+    public void setsAddedOneByOneAreCombinedOnceAllHaveBeenAdded() throws ExecutionException, InterruptedException {
+        MutableRoaringBitmap shared = MutableRoaringBitmap.bitmapOf(1, 2, 3);
+        CompletableFuture<ImmutableRoaringBitmap> second = new CompletableFuture<>();
+
+        IdSetAccumulator intersection = IdSetAccumulator.intersection();
+        intersection.add(CompletableFuture.completedFuture(shared));
+        intersection.add(second);
+        second.complete(MutableRoaringBitmap.bitmapOf(2, 3, 4));
+        intersection.add(CompletableFuture.completedFuture(MutableRoaringBitmap.bitmapOf(3, 4)));
+
+        assertEquals(MutableRoaringBitmap.bitmapOf(3), intersection.result().get());
+        assertEquals(MutableRoaringBitmap.bitmapOf(1, 2, 3), shared);
+    }
+
+    @Test
+    public void singleSetIsPassedOnWithoutCopying() throws ExecutionException, InterruptedException {
+        MutableRoaringBitmap shared = MutableRoaringBitmap.bitmapOf(1, 2);
+
+        assertSame(shared, IdSetAccumulator.union(Stream.of(CompletableFuture.completedFuture(shared))).get());
+    }
+}
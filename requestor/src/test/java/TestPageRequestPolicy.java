@@ -0,0 +1,64 @@
+import de.rwth.imi.flare.requestor.HttpStatusException;
+import de.rwth.imi.flare.requestor.PageRequestPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPageRequestPolicy {
+
+    @Test
+    public void transientFailuresAreRetried() throws Exception {
+        PageRequestPolicy policy = new PageRequestPolicy(false, 0, 2);
+        AtomicInteger attempts = new AtomicInteger();
+
+        String page = policy.execute("Observation", () -> attempts.incrementAndGet() < 3
+                ? CompletableFuture.failedFuture(new HttpStatusException(503))
+                : CompletableFuture.completedFuture("page")).get();
+
+        assertEquals("page", page);
+        assertEquals(3, attempts.get());
+        assertEquals(2, policy.getRetryCount());
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() {
+        PageRequestPolicy policy = new PageRequestPolicy(false, 0, 2);
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletableFuture<String> page = policy.execute("Observation", () -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.failedFuture(new HttpStatusException(410));
+        });
+
+        ExecutionException e = assertThrows(ExecutionException.class, page::get);
+        assertTrue(e.getCause() instanceof HttpStatusException);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void slowPageIsHedgedWithinBudget() throws Exception {
+        PageRequestPolicy policy = new PageRequestPolicy(true, 5, 0);
+        for (int i = 0; i < 20; i++) {
+            policy.execute("Observation", () -> CompletableFuture.completedFuture("page")).get();
+        }
+
+        // The first attempt never answers, the hedged one does
+        AtomicInteger attempts = new AtomicInteger();
+        String page = policy.execute("Observation", () -> attempts.incrementAndGet() == 1
+                ? new CompletableFuture<>()
+                : CompletableFuture.completedFuture("hedged")).get();
+
+        assertEquals("hedged", page);
+        assertEquals(1, policy.getHedgeCount());
+
+        // The budget of 5% of 22 requests is used up by the first hedge
+        CompletableFuture<String> unanswered = policy.execute("Observation", CompletableFuture::new);
+        Thread.sleep(100);
+        assertFalse(unanswered.isDone());
+        assertEquals(1, policy.getHedgeCount());
+    }
+}
@@ -0,0 +1,103 @@
+import de.rwth.imi.flare.requestor.CacheConfig;
+import de.rwth.imi.flare.requestor.FhirRequestor;
+import de.rwth.imi.flare.requestor.FhirRequestorConfig;
+import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.PatientIdDictionary;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.net.Authenticator;
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestPatientIdDictionary {
+
+    @Test
+    public void codesAreStableAndDense() {
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+
+        assertEquals(0, dictionary.encode("p1"));
+        assertEquals(1, dictionary.encode("p2"));
+        assertEquals(0, dictionary.encode("p1"));
+        assertEquals("p2", dictionary.decode(1));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    public void bitmapRoundTrip() {
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        List<String> patientIds = IntStream.range(0, 5000).mapToObj(i -> "patient-" + i).toList();
+
+        ImmutableRoaringBitmap bitmap = dictionary.encodeAll(patientIds);
+
+        assertEquals(5000, bitmap.getCardinality());
+        assertEquals(Set.copyOf(patientIds), dictionary.decodeAll(bitmap));
+    }
+
+    @Test
+    public void namespacesKeepIdsOfDifferentServersApart() {
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+
+        MutableRoaringBitmap first = dictionary.encodeAll("0:", List.of("p1", "p2"));
+        MutableRoaringBitmap second = dictionary.encodeAll("1:", List.of("p1"));
+
+        assertEquals(3, MutableRoaringBitmap.or(first, second).getCardinality());
+        assertEquals("1:p1", dictionary.decode(second.first()));
+        assertEquals(dictionary.encode("p2"), dictionary.encode("", "p2"));
+    }
+
+    @Test
+    public void requestorsSharingTheDictionaryTakeEqualPartsFromTheirCacheBudgets() {
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        dictionary.encodeAll(IntStream.range(0, 5000).mapToObj(i -> "patient-" + i).toList());
+
+        createRequestor(dictionary);
+        FhirRequestor requestor = createRequestor(dictionary);
+
+        assertEquals(dictionary.getRetainedBytes() / 2, dictionary.getRetainedBytesPerRequestor());
+        assertEquals(1024 * 1024 - dictionary.getRetainedBytesPerRequestor(),
+                requestor.getCacheMetrics().getMaximumSizeBytes());
+    }
+
+    private static FhirRequestor createRequestor(PatientIdDictionary dictionary) {
+        FhirRequestorConfig requestorConfig = new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return URI.create("http://localhost/fhir/");
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return null;
+            }
+        };
+        CacheConfig cacheConfig = new CacheConfig() {
+            @Override
+            public int getCacheSizeInMb() {
+                return 1;
+            }
+
+            @Override
+            public int getEntryRefreshTimeHours() {
+                return 24;
+            }
+        };
+        return new FhirRequestor(requestorConfig, cacheConfig, Runnable::run, dictionary);
+    }
+}
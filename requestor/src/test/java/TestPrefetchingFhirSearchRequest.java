@@ -0,0 +1,142 @@
+import de.rwth.imi.flare.requestor.BundlePageParser;
+import de.rwth.imi.flare.requestor.FhirHttpClient;
+import de.rwth.imi.flare.requestor.FlareHttpClientConfig;
+import de.rwth.imi.flare.requestor.PrefetchingFhirSearchRequest;
+import de.rwth.imi.flare.requestor.SearchPage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPrefetchingFhirSearchRequest {
+
+    private static final URI SEARCH_URI = URI.create("http://localhost/fhir/Observation?code=1");
+
+    @Test
+    public void pagesAreRequestedAtMostPrefetchDepthAhead() throws Exception {
+        PagingClient client = new PagingClient();
+        PrefetchingFhirSearchRequest search = new PrefetchingFhirSearchRequest(SEARCH_URI, "", new PageNumberParser(),
+                client, false, 2);
+
+        client.answerAll();
+        assertEquals(2, client.requests.size());
+        assertEquals(0, client.inFlight());
+
+        // Two pages are requested beyond the one being read
+        assertEquals("1", search.next());
+        assertEquals(3, client.requests.size());
+        assertEquals(1, client.inFlight());
+        client.answerAll();
+        assertEquals(3, client.requests.size());
+
+        List<String> patientIds = new ArrayList<>(List.of("1"));
+        while (true) {
+            // Pages requested beyond the ones read
+            assertTrue(client.requests.size() - patientIds.size() <= 2);
+            client.answerAll();
+            if (!search.hasNext()) {
+                break;
+            }
+            patientIds.add(search.next());
+        }
+        assertEquals(List.of("1", "2", "3", "4", "5", "6", "7", "8", "9", "10"), patientIds);
+    }
+
+    @Test
+    public void cancellingAbortsRequestsInFlight() throws Exception {
+        PagingClient client = new PagingClient();
+        PrefetchingFhirSearchRequest search = new PrefetchingFhirSearchRequest(SEARCH_URI, "", new PageNumberParser(),
+                client, false, 2);
+        client.answer(0);
+        assertEquals(1, client.inFlight());
+
+        search.cancel();
+
+        assertTrue(client.requests.get(1).response.isCancelled());
+        assertThrows(CancellationException.class, search::hasNext);
+        client.answerAll();
+        assertEquals(2, client.requests.size());
+    }
+
+    /**
+     * Each page references a single patient, whose id is the number of the page
+     */
+    private static class PageNumberParser implements BundlePageParser {
+        private static final int PAGE_TOTAL = 10;
+
+        @Override
+        public SearchPage parse(InputStream bundle) throws IOException {
+            int pageNumber = Integer.parseInt(new String(bundle.readAllBytes(), StandardCharsets.UTF_8));
+            URI nextPageUri = pageNumber < PAGE_TOTAL ? URI.create(SEARCH_URI + "&page=" + (pageNumber + 1)) : null;
+            return new SearchPage(List.of(String.valueOf(pageNumber)), nextPageUri);
+        }
+    }
+
+    /**
+     * Holds every request until it is answered by the test
+     */
+    private static class PagingClient extends FhirHttpClient {
+        private final List<PendingRequest<?>> requests = new ArrayList<>();
+
+        private PagingClient() {
+            super(FlareHttpClientConfig.defaults(), Optional.empty());
+        }
+
+        @Override
+        public <T> CompletableFuture<T> sendAsync(HttpRequest req, BodyReader<T> bodyReader) {
+            PendingRequest<T> request = new PendingRequest<>(requests.size() + 1, bodyReader);
+            requests.add(request);
+            return request.response;
+        }
+
+        @Override
+        public <T> CompletableFuture<T> sendPageAsync(HttpRequest req, String resourceType,
+                                                      BodyReader<T> bodyReader) {
+            return sendAsync(req, bodyReader);
+        }
+
+        void answer(int index) throws IOException {
+            requests.get(index).answer();
+        }
+
+        void answerAll() throws IOException {
+            for (int i = 0; i < requests.size(); i++) {
+                answer(i);
+            }
+        }
+
+        long inFlight() {
+            return requests.stream().filter(request -> !request.response.isDone()).count();
+        }
+    }
+
+    private static class PendingRequest<T> {
+        private final int pageNumber;
+        private final FhirHttpClient.BodyReader<T> bodyReader;
+        private final CompletableFuture<T> response = new CompletableFuture<>();
+
+        private PendingRequest(int pageNumber, FhirHttpClient.BodyReader<T> bodyReader) {
+            this.pageNumber = pageNumber;
+            this.bodyReader = bodyReader;
+        }
+
+        void answer() throws IOException {
+            if (response.isDone()) {
+                return;
+            }
+            response.complete(bodyReader.read(new ByteArrayInputStream(
+                    String.valueOf(pageNumber).getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import de.rwth.imi.flare.requestor.ReverseChaining;
+import de.rwth.imi.flare.requestor.SearchRequests;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestReverseChaining {
+    private static final String BASE = "http://localhost:8080/fhir/";
+    private final ReverseChaining reverseChaining = new ReverseChaining(List.of("Observation", "Patient"));
+
+    @Test
+    public void singleParameterSearchIsRewritten() {
+        assertEquals(Optional.of(BASE + "Patient?_has:Observation:patient:code=loinc%7C1,loinc%7C2&_elements=id"),
+                reverseChaining.rewrite(BASE + "Observation?code=loinc%7C1,loinc%7C2"));
+        assertEquals(Optional.of(BASE + "Patient?_has:Observation:patient:code=loinc%7C1"
+                        + "&_has:Observation:patient:_lastUpdated=gt2022-01-01T00:00:00Z&_elements=id"),
+                reverseChaining.rewrite(BASE + "Observation?code=loinc%7C1&_lastUpdated=gt2022-01-01T00:00:00Z"));
+    }
+
+    @Test
+    public void rewrittenSearchIsCountedWithoutProjection() {
+        URI patientSearch = URI.create(reverseChaining.rewrite(BASE + "Observation?code=loinc%7C1").orElseThrow());
+
+        assertEquals("_has:Observation:patient:code=loinc|1&_summary=count",
+                SearchRequests.buildCountQuery(patientSearch));
+        assertEquals("_summary=count", SearchRequests.buildCountQuery(URI.create(BASE + "Patient")));
+    }
+
+    @Test
+    public void searchesThatWouldChangeMeaningAreKept() {
+        assertEquals(Optional.empty(), reverseChaining.rewrite(BASE + "Observation?code=loinc%7C1&value-quantity=ge5"));
+        assertEquals(Optional.empty(), reverseChaining.rewrite(BASE + "Condition?code=icd%7CI10"));
+        assertEquals(Optional.empty(), reverseChaining.rewrite(BASE + "Patient?gender=female"));
+    }
+}
@@ -0,0 +1,46 @@
+import de.rwth.imi.flare.requestor.SearchBatches;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSearchBatches {
+    private static final String BASE = "http://localhost:8080/fhir/";
+
+    @Test
+    public void siblingsAreMergedIntoOneSearch() {
+        List<String> batches = SearchBatches.batch(List.of(
+                BASE + "Condition?code=icd%7CI10&recorded-date=ge2020-01-01",
+                BASE + "Condition?code=icd%7CI11&recorded-date=ge2020-01-01",
+                BASE + "Condition?code=icd%7CI12,icd%7CI10&recorded-date=ge2020-01-01",
+                BASE + "Condition?code=icd%7CI13&recorded-date=ge2021-01-01",
+                BASE + "Observation?code=loinc%7C1"), 6000);
+
+        assertEquals(List.of(
+                BASE + "Condition?code=icd%7CI10,icd%7CI11,icd%7CI12&recorded-date=ge2020-01-01",
+                BASE + "Condition?code=icd%7CI13&recorded-date=ge2021-01-01",
+                BASE + "Observation?code=loinc%7C1"), batches);
+    }
+
+    @Test
+    public void mergedSearchesAreSplitByLength() {
+        String prefix = BASE + "Condition?code=";
+        List<String> batches = SearchBatches.batch(List.of(
+                prefix + "aaaa", prefix + "bbbb", prefix + "cccc", prefix + "dddd", prefix + "eeee"),
+                prefix.length() + 14);
+
+        assertEquals(List.of(prefix + "aaaa,bbbb", prefix + "cccc,dddd", prefix + "eeee"), batches);
+        batches.forEach(batch -> assertTrue(batch.length() <= prefix.length() + 14));
+    }
+
+    @Test
+    public void repeatedParametersAreNotMerged() {
+        List<String> searches = List.of(
+                BASE + "Patient?birthdate=ge1990-01-01&birthdate=le2000-01-01",
+                BASE + "Patient?birthdate=ge1990-01-01&birthdate=le2001-01-01");
+
+        assertEquals(searches, SearchBatches.batch(searches, 6000));
+    }
+}
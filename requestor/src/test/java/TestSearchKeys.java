@@ -0,0 +1,36 @@
+import de.rwth.imi.flare.requestor.SearchKeys;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class TestSearchKeys {
+    private static final URI BASE = URI.create("http://localhost:8080/fhir/");
+
+    @Test
+    public void equivalentSearchesShareOneKey() {
+        String key = SearchKeys.canonicalize(BASE,
+                "Condition?code=http%3A%2F%2Ffhir.de%7CI10,http%3A%2F%2Ffhir.de%7CE11&recorded-date=ge2020-01-01");
+
+        assertEquals(key, SearchKeys.canonicalize(URI.create("HTTP://LocalHost:8080/fhir"),
+                "Condition?recorded-date=ge2020-01-01&code=http://fhir.de|E11,http%3A%2F%2Ffhir.de%7CI10,http%3A%2F%2Ffhir.de%7CE11"));
+        assertEquals("http://localhost:8080/fhir/Condition?code=http%3A%2F%2Ffhir.de%7CE11,http%3A%2F%2Ffhir.de%7CI10"
+                + "&recorded-date=ge2020-01-01", key);
+    }
+
+    @Test
+    public void differentSearchesKeepDifferentKeys() {
+        assertNotEquals(SearchKeys.canonicalize(BASE, "Observation?code=a&value-quantity=ge5.0"),
+                SearchKeys.canonicalize(BASE, "Observation?code=a&value-quantity=le5.0"));
+        assertNotEquals(SearchKeys.canonicalize(BASE, "Observation?code=a,b"),
+                SearchKeys.canonicalize(BASE, "Observation?code=a&code=b"));
+    }
+
+    @Test
+    public void parametersWithoutValueAreKept() {
+        assertEquals("http://localhost:8080/fhir/Consent?$mii-consent",
+                SearchKeys.canonicalize(BASE, "Consent?$mii-consent"));
+    }
+}
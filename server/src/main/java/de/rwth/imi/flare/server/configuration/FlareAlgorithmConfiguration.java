@@ -7,21 +7,28 @@ import de.rwth.imi.flare.api.Executor;
 import de.rwth.imi.flare.api.FhirResourceMapper;
 import de.rwth.imi.flare.api.model.TerminologyCode;
 import de.rwth.imi.flare.executor.FlareExecutor;
+import de.rwth.imi.flare.executor.FlareExecutorConfig;
 import de.rwth.imi.flare.mapping.expansion.ExpansionTreeNode;
 import de.rwth.imi.flare.mapping.expansion.QueryExpander;
 import de.rwth.imi.flare.mapping.lookup.NaiveLookupMapping;
 import de.rwth.imi.flare.mapping.lookup.SourceMappingEntry;
+import de.rwth.imi.flare.requestor.BundleParserType;
 import de.rwth.imi.flare.requestor.CacheConfig;
+import de.rwth.imi.flare.requestor.ExecutionMode;
 import de.rwth.imi.flare.requestor.FhirRequestor;
 import de.rwth.imi.flare.requestor.FhirRequestorConfig;
+import de.rwth.imi.flare.requestor.FlareHttpClientConfig;
 import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.PatientIdDictionary;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
-import java.util.concurrent.Executors;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -89,14 +96,83 @@ public class FlareAlgorithmConfiguration {
     }
 
     @Bean
-    public Executor executor(@Nullable Authenticator auth,
-                             @Value("${flare.fhir.server}") String fhirBaseUri, @Value("${flare.fhir.pagecount}") String fhirSearchPageCount,
+    public FlareHttpClientConfig httpClientConfig(
+            @Value("${flare.fhir.connectTimeoutSeconds}") int connectTimeoutSeconds,
+            @Value("${flare.fhir.requestTimeoutSeconds}") int requestTimeoutSeconds,
+            @Value("${flare.fhir.maxConnections}") int maxConnections,
+            @Value("${flare.fhir.http2}") boolean http2Enabled,
+            @Value("${flare.fhir.adaptiveConcurrency}") boolean adaptiveConcurrencyEnabled,
+            @Value("${flare.fhir.minConnections}") int minConnections) {
+        return new FlareHttpClientConfig(connectTimeoutSeconds, requestTimeoutSeconds, maxConnections, http2Enabled,
+                adaptiveConcurrencyEnabled, minConnections);
+    }
+
+    /**
+     * One requestor per configured FHIR server, each with its own caches and limit of concurrent requests. The
+     * configured cache sizes are split evenly between them, patient ids are encoded by one shared dictionary
+     */
+    @Bean
+    public List<FhirRequestor> fhirRequestors(@Nullable Authenticator auth, FlareHttpClientConfig httpClientConfig,
+                             @Value("${flare.fhir.server}") List<String> fhirBaseUris, @Value("${flare.fhir.pagecount}") String fhirSearchPageCount,
+                             @Value("${flare.fhir.namespacePatientIds}") boolean namespacePatientIds,
+                             @Value("${flare.fhir.bundleParser}") BundleParserType bundleParserType,
+                             @Value("${flare.fhir.elementProjection}") boolean elementProjectionEnabled,
+                             @Value("${flare.fhir.prefetchPages}") int prefetchPages,
+                             @Value("${flare.fhir.nonBlockingSearch}") boolean nonBlockingSearchEnabled,
+                             @Value("${flare.fhir.searchBatching}") boolean searchBatchingEnabled,
+                             @Value("${flare.fhir.maxBatchedUrlLength}") int maxBatchedUrlLength,
+                             @Value("${flare.fhir.maxPostBodyLength}") int maxPostBodyLength,
+                             @Value("${flare.fhir.reverseChainingResourceTypes}") Set<String> reverseChainingResourceTypes,
+                             @Value("${flare.fhir.pageHedging}") boolean pageHedgingEnabled,
+                             @Value("${flare.fhir.pageHedgeBudgetPercent}") double pageHedgeBudgetPercent,
+                             @Value("${flare.fhir.maxPageRetries}") int maxPageRetries,
                              @Value("${flare.exec.corePoolSize}") int corePoolSize, @Value("${flare.exec.maxPoolSize}") int maxPoolSize,
                              @Value("${flare.exec.keepAliveTimeSeconds}") int keepAliveTimeSeconds,
+                             @Value("${flare.exec.mode}") ExecutionMode executionMode,
                              @Value("${flare.cache.cacheSizeMb}") int cacheSizeMb,
-                             @Value("${flare.cache.entryRefreshTimeHours}") int entryRefreshTimeHours) {
+                             @Value("${flare.cache.entryRefreshTimeHours}") int entryRefreshTimeHours,
+                             @Value("${flare.cache.diskCachePath}") String diskCachePath,
+                             @Value("${flare.cache.diskCacheSizeMb}") int diskCacheSizeMb,
+                             @Value("${flare.cache.deltaRefresh}") boolean deltaRefresh,
+                             @Value("${flare.cache.fullRefreshIntervalHours}") int fullRefreshIntervalHours,
+                             @Value("${flare.cache.unionCacheSizeMb}") int unionCacheSizeMb) {
+
+        FlareThreadPoolConfig threadPoolConfig = new FlareThreadPoolConfig(corePoolSize, maxPoolSize,
+            keepAliveTimeSeconds, executionMode);
+        ExecutorService executorService = threadPoolConfig.createExecutorService();
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        int sourceCount = fhirBaseUris.size();
+        List<FhirRequestor> requestors = new ArrayList<>();
+        for (int source = 0; source < sourceCount; source++) {
+            requestors.add(new FhirRequestor(
+                    createRequestorConfig(auth, httpClientConfig, fhirBaseUris.get(source).trim(),
+                            namespacePatientIds && sourceCount > 1 ? source + ":" : "", fhirSearchPageCount,
+                            bundleParserType, elementProjectionEnabled, prefetchPages, nonBlockingSearchEnabled,
+                            searchBatchingEnabled, maxBatchedUrlLength, maxPostBodyLength,
+                            reverseChainingResourceTypes, pageHedgingEnabled, pageHedgeBudgetPercent, maxPageRetries,
+                            threadPoolConfig),
+                    createCacheConfig(partition(cacheSizeMb, sourceCount), entryRefreshTimeHours,
+                            sourceCount > 1 && !diskCachePath.isEmpty()
+                                    ? new File(diskCachePath, "source-" + source).getPath() : diskCachePath,
+                            partition(diskCacheSizeMb, sourceCount), deltaRefresh, fullRefreshIntervalHours,
+                            partition(unionCacheSizeMb, sourceCount)),
+                    executorService, dictionary));
+        }
+        return requestors;
+    }
+
+    private static int partition(int sizeMb, int sourceCount) {
+        return sizeMb == 0 ? 0 : Math.max(1, sizeMb / sourceCount);
+    }
 
-        FhirRequestorConfig config = new FhirRequestorConfig() {
+    private static FhirRequestorConfig createRequestorConfig(Authenticator auth, FlareHttpClientConfig httpClientConfig,
+                             String fhirBaseUri, String patientIdNamespace, String fhirSearchPageCount,
+                             BundleParserType bundleParserType, boolean elementProjectionEnabled, int prefetchPages,
+                             boolean nonBlockingSearchEnabled, boolean searchBatchingEnabled, int maxBatchedUrlLength,
+                             int maxPostBodyLength,
+                             Set<String> reverseChainingResourceTypes, boolean pageHedgingEnabled,
+                             double pageHedgeBudgetPercent, int maxPageRetries, FlareThreadPoolConfig threadPoolConfig) {
+        return new FhirRequestorConfig() {
             @Override
             public Optional<Authenticator> getAuthentication() {
                 return Optional.ofNullable(auth);
@@ -120,11 +196,80 @@ public class FlareAlgorithmConfiguration {
 
             @Override
             public FlareThreadPoolConfig getThreadPoolConfig() {
-                return new FlareThreadPoolConfig(corePoolSize, maxPoolSize,
-                    keepAliveTimeSeconds);
+                return threadPoolConfig;
+            }
+
+            @Override
+            public FlareHttpClientConfig getHttpClientConfig() {
+                return httpClientConfig;
+            }
+
+            @Override
+            public BundleParserType getBundleParserType() {
+                return bundleParserType;
+            }
+
+            @Override
+            public boolean isElementProjectionEnabled() {
+                return elementProjectionEnabled;
+            }
+
+            @Override
+            public int getPrefetchDepth() {
+                return prefetchPages;
+            }
+
+            @Override
+            public boolean isNonBlockingSearchEnabled() {
+                return nonBlockingSearchEnabled;
+            }
+
+            @Override
+            public boolean isSearchBatchingEnabled() {
+                return searchBatchingEnabled;
+            }
+
+            @Override
+            public int getMaxBatchedUrlLength() {
+                return maxBatchedUrlLength;
+            }
+
+            @Override
+            public int getMaxPostBodyLength() {
+                return maxPostBodyLength;
+            }
+
+            @Override
+            public Set<String> getReverseChainingResourceTypes() {
+                return reverseChainingResourceTypes;
+            }
+
+            @Override
+            public boolean isPageHedgingEnabled() {
+                return pageHedgingEnabled;
+            }
+
+            @Override
+            public double getPageHedgeBudgetPercent() {
+                return pageHedgeBudgetPercent;
+            }
+
+            @Override
+            public int getMaxPageRetries() {
+                return maxPageRetries;
+            }
+
+            @Override
+            public String getPatientIdNamespace() {
+                return patientIdNamespace;
             }
         };
-        CacheConfig cacheConfig = new CacheConfig() {
+    }
+
+    private static CacheConfig createCacheConfig(int cacheSizeMb, int entryRefreshTimeHours, String diskCachePath,
+                             int diskCacheSizeMb, boolean deltaRefresh, int fullRefreshIntervalHours,
+                             int unionCacheSizeMb) {
+        return new CacheConfig() {
 
             @Override
             public int getCacheSizeInMb() {
@@ -136,9 +281,55 @@ public class FlareAlgorithmConfiguration {
                 return entryRefreshTimeHours;
             }
 
+            @Override
+            public String getDiskCachePath() {
+                return diskCachePath;
+            }
+
+            @Override
+            public int getDiskCacheSizeInMb() {
+                return diskCacheSizeMb;
+            }
+
+            @Override
+            public boolean isDeltaRefreshEnabled() {
+                return deltaRefresh;
+            }
+
+            @Override
+            public int getFullRefreshIntervalHours() {
+                return fullRefreshIntervalHours;
+            }
+
+            @Override
+            public int getUnionCacheSizeInMb() {
+                return unionCacheSizeMb;
+            }
+
         };
+    }
+
+    @Bean
+    public Executor executor(List<FhirRequestor> fhirRequestors,
+                             @Value("${flare.exec.costBasedPlanning}") boolean costBasedPlanningEnabled,
+                             @Value("${flare.exec.semiJoinThreshold}") int semiJoinThreshold,
+                             @Value("${flare.exec.lazyExclusion}") boolean lazyExclusionEnabled) {
+        return new FlareExecutor(fhirRequestors, new FlareExecutorConfig() {
+            @Override
+            public boolean isCostBasedPlanningEnabled() {
+                return costBasedPlanningEnabled;
+            }
 
-        return new FlareExecutor(new FhirRequestor(config, cacheConfig, Executors.newFixedThreadPool(maxPoolSize)));
+            @Override
+            public int getSemiJoinThreshold() {
+                return semiJoinThreshold;
+            }
+
+            @Override
+            public boolean isLazyExclusionEnabled() {
+                return lazyExclusionEnabled;
+            }
+        });
     }
 
 
@@ -1,20 +1,31 @@
 package de.rwth.imi.flare.server.controller;
 
 import de.rwth.imi.flare.server.services.QueryEvaluator;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import javax.xml.transform.TransformerConfigurationException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 @RestController
 @CrossOrigin
 @RequestMapping(value = "query")
 public class FlareController {
 
+    /**
+     * Request header limiting the time a query may take, in seconds
+     */
+    public static final String QUERY_TIMEOUT_HEADER = "X-Flare-Query-Timeout";
+    private static final long NO_TIMEOUT = -1;
+
     private final QueryEvaluator queryEval;
 
     public FlareController(QueryEvaluator queryEval){
@@ -22,21 +33,41 @@ public class FlareController {
     }
 
     /**
-     * Enables post mapping of structured queries to the specified endpoint "/executeQuery"
+     * Enables post mapping of structured queries to the specified endpoint "/executeQuery".
+     * The response is written once the query has been executed, without blocking a request thread meanwhile. If the
+     * client disconnects before, the query is cancelled.
      * @param query Query from body
      * @param format Encoding, either I2B2 or CSQ
+     * @param timeoutSeconds time the query may take, positive and capped by the configured query timeout
      */
 
     @PostMapping(path = "/execute")
-    public ResponseEntity<String> executeQuery(@RequestBody String query, @RequestHeader("Content-Type") String format) throws TransformerConfigurationException, IOException, ExecutionException, InterruptedException {
-
+    public DeferredResult<ResponseEntity<String>> executeQuery(@RequestBody String query, @RequestHeader("Content-Type") String format,
+                                                               @RequestHeader(value = QUERY_TIMEOUT_HEADER, required = false) Integer timeoutSeconds) throws TransformerConfigurationException, IOException, ExecutionException, InterruptedException {
+        // The query has a deadline of its own, so the container does not time out the request
+        DeferredResult<ResponseEntity<String>> response = new DeferredResult<>(NO_TIMEOUT);
+        CompletableFuture<Integer> queryResponse;
         try {
-            var queryResponse = this.queryEval.evaluate(query, format);
-            return ResponseEntity.ok().body(String.valueOf(queryResponse.get()));
+            queryResponse = this.queryEval.evaluate(query, format, timeoutSeconds);
         }
-        catch (NoSuchElementException e){
-            return ResponseEntity.badRequest().body(e.getMessage());
+        catch (NoSuchElementException | IllegalArgumentException e){
+            response.setResult(ResponseEntity.badRequest().body(e.getMessage()));
+            return response;
         }
+        // Also called on errors such as a disconnected client, has no effect once the query has finished
+        response.onCompletion(() -> queryResponse.cancel(true));
+        queryResponse.whenComplete((count, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause == null) {
+                response.setResult(ResponseEntity.ok().body(String.valueOf(count)));
+            } else if (cause instanceof TimeoutException) {
+                response.setResult(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                        .body("Query did not finish before its deadline"));
+            } else {
+                response.setErrorResult(cause);
+            }
+        });
+        return response;
     }
 
     @PostMapping(path = "/translate")
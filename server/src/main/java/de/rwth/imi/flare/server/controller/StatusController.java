@@ -0,0 +1,57 @@
+package de.rwth.imi.flare.server.controller;
+
+import de.rwth.imi.flare.requestor.CacheMetrics;
+import de.rwth.imi.flare.requestor.ConcurrencyMetrics;
+import de.rwth.imi.flare.requestor.FhirRequestor;
+import de.rwth.imi.flare.server.services.CacheWarmupService;
+import de.rwth.imi.flare.server.services.WarmupStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@CrossOrigin
+@RequestMapping(value = "status")
+public class StatusController {
+
+    private final List<FhirRequestor> requestors;
+    private final CacheWarmupService warmupService;
+
+    public StatusController(List<FhirRequestor> requestors, CacheWarmupService warmupService){
+        this.requestors = requestors;
+        this.warmupService = warmupService;
+    }
+
+    /**
+     * Reports size and usage of the criterion cache, sizes are the bytes actually held on the heap
+     * @param source index of the FHIR server in the configured list
+     */
+    @GetMapping(path = "/cache")
+    public ResponseEntity<CacheMetrics> getCacheMetrics(@RequestParam(defaultValue = "0") int source) {
+        if (source < 0 || source >= this.requestors.size()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().body(this.requestors.get(source).getCacheMetrics());
+    }
+
+    /**
+     * Reports the current limit of concurrent requests toward the FHIR server, how many are in flight and waiting
+     * @param source index of the FHIR server in the configured list
+     */
+    @GetMapping(path = "/fhir")
+    public ResponseEntity<ConcurrencyMetrics> getConcurrencyMetrics(@RequestParam(defaultValue = "0") int source) {
+        if (source < 0 || source >= this.requestors.size()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().body(this.requestors.get(source).getConcurrencyMetrics());
+    }
+
+    /**
+     * Reports progress of the current or latest cache warm-up and the hit ratio achieved since
+     */
+    @GetMapping(path = "/warmup")
+    public ResponseEntity<WarmupStatus> getWarmupStatus() {
+        return ResponseEntity.ok().body(this.warmupService.getStatus());
+    }
+}
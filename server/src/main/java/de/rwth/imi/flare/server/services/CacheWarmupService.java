@@ -0,0 +1,235 @@
+package de.rwth.imi.flare.server.services;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.QueryExpanded;
+import de.rwth.imi.flare.requestor.CacheMetrics;
+import de.rwth.imi.flare.requestor.FhirRequestor;
+import de.rwth.imi.flare.requestor.SearchScope;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Fills the criterion cache by replaying the {@link QueryLog}: all queries are parsed and mapped, and the most
+ * frequent of the resulting criteria are fetched with bounded concurrency until the time budget is used up.<br>
+ * Runs once at startup, before the application reports readiness, and then on the configured schedule. Entries
+ * that are already cached are only refreshed if stale, so scheduled runs are cheap. With several FHIR servers,
+ * every criterion is warmed on all of them. Searches still running when the time budget is used up are cancelled,
+ * unless a query waits for them as well.
+ */
+@Slf4j
+@Service
+public class CacheWarmupService implements ApplicationRunner {
+    private final QueryLog queryLog;
+    private final QueryEvaluator queryEvaluator;
+    private final List<FhirRequestor> requestors;
+    private final boolean onStartup;
+    private final int concurrency;
+    private final Duration timeBudget;
+    private final int maxCriteria;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile WarmupStatus.State state = WarmupStatus.State.NOT_STARTED;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile int queriesRead;
+    private volatile int queriesFailed;
+    private volatile int criteriaTotal;
+    private final AtomicInteger criteriaWarmed = new AtomicInteger();
+    private final AtomicInteger criteriaAlreadyCached = new AtomicInteger();
+    private final AtomicInteger criteriaFailed = new AtomicInteger();
+    private final AtomicInteger criteriaSkipped = new AtomicInteger();
+    // cache statistics of all requestors when the latest run finished
+    private volatile CacheMetrics[] metricsAfterWarmup;
+
+    public CacheWarmupService(QueryLog queryLog, QueryEvaluator queryEvaluator, List<FhirRequestor> requestors,
+                              @Value("${flare.warmup.onStartup}") boolean onStartup,
+                              @Value("${flare.warmup.concurrency}") int concurrency,
+                              @Value("${flare.warmup.timeBudgetSeconds}") int timeBudgetSeconds,
+                              @Value("${flare.warmup.maxCriteria}") int maxCriteria) {
+        this.queryLog = queryLog;
+        this.queryEvaluator = queryEvaluator;
+        this.requestors = requestors;
+        this.onStartup = onStartup;
+        this.concurrency = Math.max(1, concurrency);
+        this.timeBudget = Duration.ofSeconds(timeBudgetSeconds);
+        this.maxCriteria = maxCriteria;
+    }
+
+    /**
+     * Application runners are called before readiness is reported
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (this.onStartup) {
+            warmUp();
+        }
+    }
+
+    @Scheduled(cron = "${flare.warmup.cron}")
+    public void scheduledWarmUp() {
+        warmUp();
+    }
+
+    /**
+     * Replays the query log, unless no log is configured or a run is already in progress
+     */
+    public void warmUp() {
+        if (!this.queryLog.isConfigured() || !this.running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            resetProgress();
+            runWarmUp(Instant.now().plus(this.timeBudget));
+            this.state = WarmupStatus.State.FINISHED;
+        } catch (Exception e) {
+            log.warn("Cache warm-up failed", e);
+            this.state = WarmupStatus.State.FAILED;
+        } finally {
+            this.finishedAt = Instant.now();
+            this.metricsAfterWarmup = getCacheMetrics();
+            this.running.set(false);
+        }
+        log.info("Cache warm-up finished: " + this.criteriaWarmed.get() + " of " + this.criteriaTotal
+                + " criteria warmed, " + this.criteriaAlreadyCached.get() + " already cached, in " + Duration.between(this.startedAt, this.finishedAt).toSeconds() + "s");
+    }
+
+    /**
+     * @return progress of the current or latest run
+     */
+    public WarmupStatus getStatus() {
+        CacheMetrics[] baseline = this.metricsAfterWarmup;
+        long hits = 0;
+        long requests = 0;
+        if (baseline != null) {
+            CacheMetrics[] current = getCacheMetrics();
+            for (int i = 0; i < current.length; i++) {
+                long sourceHits = current[i].getHitCount() - baseline[i].getHitCount();
+                hits += sourceHits;
+                requests += sourceHits + current[i].getMissCount() - baseline[i].getMissCount();
+            }
+        }
+        return new WarmupStatus(this.state, this.startedAt, this.finishedAt, this.queriesRead, this.queriesFailed,
+                this.criteriaTotal, this.criteriaWarmed.get(), this.criteriaAlreadyCached.get(),
+                this.criteriaFailed.get(), this.criteriaSkipped.get(),
+                requests == 0 ? null : (double) hits / requests, requests);
+    }
+
+    private CacheMetrics[] getCacheMetrics() {
+        return this.requestors.stream().map(FhirRequestor::getCacheMetrics).toArray(CacheMetrics[]::new);
+    }
+
+    private void resetProgress() {
+        this.state = WarmupStatus.State.RUNNING;
+        this.startedAt = Instant.now();
+        this.finishedAt = null;
+        this.queriesRead = 0;
+        this.queriesFailed = 0;
+        this.criteriaTotal = 0;
+        this.criteriaWarmed.set(0);
+        this.criteriaAlreadyCached.set(0);
+        this.criteriaFailed.set(0);
+        this.criteriaSkipped.set(0);
+    }
+
+    private void runWarmUp(Instant deadline) throws Exception {
+        List<Criterion> criteria = selectMostFrequentCriteria(this.queryLog.read());
+        this.criteriaTotal = criteria.size();
+
+        // One scope per requestor, closing them cancels the searches no query waits for
+        List<SearchScope> scopes = this.requestors.stream().map(FhirRequestor::openScope).toList();
+        try {
+            Semaphore permits = new Semaphore(this.concurrency);
+            List<CompletableFuture<?>> fetches = new ArrayList<>();
+            for (int i = 0; i < criteria.size(); i++) {
+                long remainingMillis = Duration.between(Instant.now(), deadline).toMillis();
+                if (remainingMillis <= 0 || !permits.tryAcquire(remainingMillis, TimeUnit.MILLISECONDS)) {
+                    this.criteriaSkipped.addAndGet(criteria.size() - i);
+                    break;
+                }
+                fetches.add(warm(criteria.get(i), scopes).whenComplete((unused, e) -> permits.release()));
+            }
+
+            long remainingMillis = Math.max(0, Duration.between(Instant.now(), deadline).toMillis());
+            CompletableFuture.allOf(fetches.toArray(new CompletableFuture[0]))
+                    .get(remainingMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.info("Cache warm-up time budget used up, cancelling the remaining searches");
+        } catch (ExecutionException e) {
+            // failures are counted per criterion
+        } finally {
+            scopes.forEach(SearchScope::close);
+        }
+    }
+
+    /**
+     * Criteria cached by every requestor are only looked up, which refreshes them if stale
+     */
+    private CompletableFuture<?> warm(Criterion criterion, List<SearchScope> scopes) {
+        try {
+            boolean alreadyCached = this.requestors.stream().allMatch(requestor -> requestor.isCached(criterion));
+            CompletableFuture<?>[] fetches = new CompletableFuture[this.requestors.size()];
+            for (int i = 0; i < fetches.length; i++) {
+                fetches[i] = this.requestors.get(i).executeAsBitmap(criterion, scopes.get(i));
+            }
+            return CompletableFuture.allOf(fetches).whenComplete((unused, e) -> {
+                if (e == null) {
+                    (alreadyCached ? this.criteriaAlreadyCached : this.criteriaWarmed).incrementAndGet();
+                } else if (scopes.get(0).isClosed()) {
+                    this.criteriaSkipped.incrementAndGet();
+                } else {
+                    this.criteriaFailed.incrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            this.criteriaFailed.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * @return distinct criteria of all given queries, most frequent first, at most maxCriteria
+     */
+    private List<Criterion> selectMostFrequentCriteria(List<QueryLog.LoggedQuery> queries) {
+        Map<String, Criterion> criteriaByUrl = new HashMap<>();
+        Map<String, Integer> frequencyByUrl = new HashMap<>();
+        for (QueryLog.LoggedQuery query : queries) {
+            this.queriesRead++;
+            try {
+                QueryExpanded expanded = this.queryEvaluator.expand(query.getQuery(), query.getFormat());
+                getAllCriteria(expanded).forEach(criterion -> {
+                    String url = this.requestors.get(0).translateCriterion(criterion);
+                    criteriaByUrl.putIfAbsent(url, criterion);
+                    frequencyByUrl.merge(url, 1, Integer::sum);
+                });
+            } catch (Exception e) {
+                log.debug("Skipping query that could not be mapped during warm-up", e);
+                this.queriesFailed++;
+            }
+        }
+        return frequencyByUrl.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(this.maxCriteria)
+                .map(entry -> criteriaByUrl.get(entry.getKey()))
+                .toList();
+    }
+
+    private static Stream<Criterion> getAllCriteria(QueryExpanded query) {
+        Stream<CriteriaGroup> inclusion = Optional.ofNullable(query.getInclusionCriteria()).orElse(List.of()).stream();
+        Stream<CriteriaGroup> exclusion = Optional.ofNullable(query.getExclusionCriteria()).orElse(List.of()).stream()
+                .flatMap(List::stream);
+        return Stream.concat(inclusion, exclusion).flatMap(group -> group.getCriteria().stream());
+    }
+}
@@ -6,6 +6,7 @@ import de.rwth.imi.flare.api.FlareParser;
 
 import de.rwth.imi.flare.api.model.QueryExpanded;
 import de.rwth.imi.flare.server.QueryFormat;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import de.rwth.imi.flare.api.model.Query;
 import de.rwth.imi.flare.parser.csq.ParserCSQ;
@@ -13,6 +14,7 @@ import de.rwth.imi.flare.parser.i2b2.ParserI2B2;
 
 import javax.xml.transform.TransformerConfigurationException;
 import java.io.IOException;
+import java.time.Instant;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -25,15 +27,22 @@ public class QueryEvaluator {
 
     private final Executor executor;
     private final FhirResourceMapper mapper;
+    private final QueryLog queryLog;
+    private final int queryTimeoutSeconds;
 
     /**
      * Constructor to load bean objects for execution and mapping
      * @param executor query executer
      * @param mapper query mapper
+     * @param queryLog log executed queries are recorded to
+     * @param queryTimeoutSeconds time a query may take unless requested otherwise, 0 for no limit
      */
-    public QueryEvaluator(Executor executor, FhirResourceMapper mapper){
+    public QueryEvaluator(Executor executor, FhirResourceMapper mapper, QueryLog queryLog,
+                          @Value("${flare.exec.queryTimeoutSeconds}") int queryTimeoutSeconds){
         this.executor = executor;
         this.mapper = mapper;
+        this.queryLog = queryLog;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
     }
 
     /**
@@ -47,9 +56,61 @@ public class QueryEvaluator {
      * @throws InterruptedException
      */
     public CompletableFuture<Integer> evaluate(String query, String format) throws TransformerConfigurationException, IOException, ExecutionException, InterruptedException {
+        return evaluate(query, format, null);
+    }
+
+    /**
+     * Evaluate query and retrieve population, giving up after the given time. Cancelling the returned future aborts
+     * the FHIR searches no other query waits for
+     * @param query query string from post request body
+     * @param format parser foramt requeested
+     * @param timeoutSeconds time the evaluation may take, at most the configured query timeout if there is one, null
+     *                       to use the configured query timeout
+     * @return population count, failing with a TimeoutException once the time has passed
+     * @throws IllegalArgumentException if the given timeout is not positive
+     * @throws TransformerConfigurationException
+     * @throws IOException
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Integer> evaluate(String query, String format, Integer timeoutSeconds) throws TransformerConfigurationException, IOException, ExecutionException, InterruptedException {
+        Instant deadline = getDeadline(timeoutSeconds);
         Query parsedQuery = parseQuery(query, format);
         QueryExpanded mappedQuery = mapQuery(parsedQuery);
-        return executeQuery(mappedQuery);
+        this.queryLog.record(query, format);
+        return executeQuery(mappedQuery, deadline);
+    }
+
+    /**
+     * A requested timeout may only shorten the configured one, so that clients can not lift the limit
+     * @return deadline of a query started now, null if it may take as long as it takes
+     */
+    private Instant getDeadline(Integer timeoutSeconds) {
+        if (timeoutSeconds != null && timeoutSeconds <= 0) {
+            throw new IllegalArgumentException("Query timeout has to be positive, was " + timeoutSeconds);
+        }
+        int seconds;
+        if (timeoutSeconds == null) {
+            seconds = this.queryTimeoutSeconds;
+        } else if (this.queryTimeoutSeconds > 0) {
+            seconds = Math.min(timeoutSeconds, this.queryTimeoutSeconds);
+        } else {
+            seconds = timeoutSeconds;
+        }
+        return seconds > 0 ? Instant.now().plusSeconds(seconds) : null;
+    }
+
+    /**
+     * Parses and maps a query without executing it
+     * @param query query string
+     * @param format parser format requested
+     * @return mapped query
+     * @throws TransformerConfigurationException
+     * @throws IOException
+     */
+    public QueryExpanded expand(String query, String format) throws TransformerConfigurationException, IOException {
+        Query parsedQuery = parseQuery(query, format);
+        return mapQuery(parsedQuery);
     }
 
     /**
@@ -92,8 +153,8 @@ public class QueryEvaluator {
         return mappedQuery;
     }
 
-    private CompletableFuture<Integer> executeQuery(QueryExpanded mappedQuery) throws ExecutionException, InterruptedException {
-        return this.executor.calculatePatientCount(mappedQuery);
+    private CompletableFuture<Integer> executeQuery(QueryExpanded mappedQuery, Instant deadline) throws ExecutionException, InterruptedException {
+        return this.executor.calculatePatientCount(mappedQuery, deadline);
     }
 
     /**
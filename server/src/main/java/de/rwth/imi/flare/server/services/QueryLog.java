@@ -0,0 +1,117 @@
+package de.rwth.imi.flare.server.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Log of the queries executed by the server, replayed by {@link CacheWarmupService}.<br>
+ * The log is either a file holding one JSON encoded {@link LoggedQuery} per line, which executed queries are appended
+ * to if recording is enabled, or a directory of query files (*.json in CSQ format, *.xml in I2B2 format).
+ */
+@Slf4j
+@Component
+public class QueryLog {
+    private static final String CSQ_FORMAT = "application/sq+json";
+    private static final String I2B2_FORMAT = "text/i2b2";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Path path;
+    private final boolean recordingEnabled;
+
+    public QueryLog(@Value("${flare.warmup.queryLog}") String path,
+                    @Value("${flare.warmup.recordQueries}") boolean recordingEnabled) {
+        this.path = path.isEmpty() ? null : Path.of(path);
+        this.recordingEnabled = recordingEnabled && this.path != null;
+    }
+
+    /**
+     * @return whether a query log has been configured
+     */
+    public boolean isConfigured() {
+        return this.path != null;
+    }
+
+    /**
+     * Appends the given query to the log, if recording is enabled
+     * @param query query as posted
+     * @param format Content-Type of the query
+     */
+    public void record(String query, String format) {
+        if (!this.recordingEnabled || Files.isDirectory(this.path)) {
+            return;
+        }
+        try {
+            String line = this.objectMapper.writeValueAsString(new LoggedQuery(format, query)) + "\n";
+            synchronized (this) {
+                Files.writeString(this.path, line, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            log.warn("Could not record query to " + this.path, e);
+        }
+    }
+
+    /**
+     * @return all queries of the log in recorded order, empty if there is no log yet
+     */
+    public List<LoggedQuery> read() throws IOException {
+        if (this.path == null || !Files.exists(this.path)) {
+            return List.of();
+        }
+        if (Files.isDirectory(this.path)) {
+            return readDirectory();
+        }
+        List<LoggedQuery> queries = new ArrayList<>();
+        for (String line : Files.readAllLines(this.path, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                queries.add(this.objectMapper.readValue(line, LoggedQuery.class));
+            } catch (IOException e) {
+                log.warn("Skipping malformed line of query log " + this.path);
+            }
+        }
+        return queries;
+    }
+
+    private List<LoggedQuery> readDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(this.path)) {
+            return files.sorted().map(file -> {
+                String name = file.getFileName().toString();
+                String format = name.endsWith(".json") ? CSQ_FORMAT : name.endsWith(".xml") ? I2B2_FORMAT : null;
+                if (format == null) {
+                    return null;
+                }
+                try {
+                    return new LoggedQuery(format, Files.readString(file, StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).filter(query -> query != null).toList();
+        }
+    }
+
+    @Data
+    @AllArgsConstructor
+    @NoArgsConstructor
+    public static class LoggedQuery {
+        private String format;
+        private String query;
+    }
+}
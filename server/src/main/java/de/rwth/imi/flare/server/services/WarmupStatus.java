@@ -0,0 +1,32 @@
+package de.rwth.imi.flare.server.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * Progress of the latest cache warm-up run, see {@link CacheWarmupService}
+ */
+@Getter
+@AllArgsConstructor
+public class WarmupStatus {
+    public enum State {NOT_STARTED, RUNNING, FINISHED, FAILED}
+
+    private final State state;
+    private final Instant startedAt;
+    private final Instant finishedAt;
+    private final int queriesRead;
+    private final int queriesFailed;
+    // distinct criteria selected for warm-up, most frequent first
+    private final int criteriaTotal;
+    // fetched by this run, not counting the ones already cached
+    private final int criteriaWarmed;
+    private final int criteriaAlreadyCached;
+    private final int criteriaFailed;
+    // not started or cancelled as the time budget was used up
+    private final int criteriaSkipped;
+    // hit ratio of the criterion cache for the requests since the warm-up finished, null if there were none
+    private final Double hitRateSinceWarmup;
+    private final long requestsSinceWarmup;
+}